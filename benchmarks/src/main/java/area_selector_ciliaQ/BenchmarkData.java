@@ -0,0 +1,124 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Synthetic, reproducible inputs of the benchmarks: random stacks, star shaped
+ * polygon ROIs standing in for freehand selections and directory trees laid
+ * out like a CiliaQ project.
+ *
+ * @author Sebastian Rassmann
+ */
+class BenchmarkData {
+
+	static final int WIDTH = 1024, HEIGHT = 1024;
+
+	/**
+	 * @param bitDepth 8, 16 or 32
+	 */
+	static ImagePlus stack(int bitDepth, int slices, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int s = 0; s < slices; s++) {
+			stack.addSlice("" + (s + 1), plane(bitDepth, random));
+		}
+		return new ImagePlus("bench_C1.tif", stack);
+	}
+
+	private static ImageProcessor plane(int bitDepth, Random random) {
+		int n = WIDTH * HEIGHT;
+		switch (bitDepth) {
+		case 8:
+			byte[] bytes = new byte[n];
+			random.nextBytes(bytes);
+			return new ByteProcessor(WIDTH, HEIGHT, bytes, null);
+		case 16:
+			short[] shorts = new short[n];
+			for (int i = 0; i < n; i++) {
+				shorts[i] = (short) random.nextInt(4096);
+			}
+			return new ShortProcessor(WIDTH, HEIGHT, shorts, null);
+		case 32:
+			float[] floats = new float[n];
+			for (int i = 0; i < n; i++) {
+				floats[i] = random.nextFloat();
+			}
+			return new FloatProcessor(WIDTH, HEIGHT, floats, null);
+		default:
+			throw new IllegalArgumentException("bit depth " + bitDepth);
+		}
+	}
+
+	/**
+	 * Star shaped polygon with jittered radius, the number of vertices sets the
+	 * complexity of the outline.
+	 */
+	static Roi star(int vertices, double cx, double cy, double radius, Random random) {
+		float[] x = new float[vertices], y = new float[vertices];
+		for (int i = 0; i < vertices; i++) {
+			double angle = 2 * Math.PI * i / vertices;
+			double r = radius * (0.5 + 0.5 * random.nextDouble());
+			x[i] = (float) (cx + r * Math.cos(angle));
+			y[i] = (float) (cy + r * Math.sin(angle));
+		}
+		return new PolygonRoi(x, y, vertices, Roi.POLYGON);
+	}
+
+	/**
+	 * Overlapping stars spread over the image, like a set of cells drawn one by
+	 * one.
+	 */
+	static Roi[] rois(int count, int vertices, long seed) {
+		Random random = new Random(seed);
+		Roi[] rois = new Roi[count];
+		double radius = Math.max(32, WIDTH / (2 * Math.sqrt(count)));
+		for (int i = 0; i < count; i++) {
+			double cx = radius + random.nextDouble() * (WIDTH - 2 * radius);
+			double cy = radius + random.nextDouble() * (HEIGHT - 2 * radius);
+			rois[i] = star(vertices, cx, cy, radius, random);
+		}
+		return rois;
+	}
+
+	/**
+	 * Creates a tree of empty files: every directory holds filesPerDir image sets
+	 * (_C1.tif, _C2.tif, _Rois.zip) and fanOut subdirectories, one of them named
+	 * "skip" to exercise the directory exclusion.
+	 */
+	static void tree(File dir, int depth, int fanOut, int filesPerDir) throws IOException {
+		Files.createDirectories(dir.toPath());
+		for (int i = 0; i < filesPerDir; i++) {
+			for (String suffix : new String[] { "_C1.tif", "_C2.tif", "_Rois.zip" }) {
+				new File(dir, "img" + i + suffix).createNewFile();
+			}
+		}
+		if (depth == 0) {
+			return;
+		}
+		for (int i = 0; i < fanOut; i++) {
+			tree(new File(dir, i == 0 ? "skip" : "d" + i), depth - 1, fanOut, filesPerDir);
+		}
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,72 @@
+package area_selector_ciliaQ;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * Clearing a stack outside of a ROI: rasterized spans ({@link SpanMask}, as
+ * used by the plugin) against ImageJ's ImageProcessor.fillOutside per slice
+ * (what "Clear Outside" does). Clearing an already cleared stack costs the
+ * same, so the stack is reused between invocations.
+ *
+ * @author Sebastian Rassmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ClearOutsideBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	@Param({ "16", "64" })
+	int slices;
+
+	@Param({ "16", "256", "4096" })
+	int vertices;
+
+	private ImageStack stack;
+	private Roi roi;
+
+	@Setup
+	public void setup() {
+		stack = BenchmarkData.stack(bitDepth, slices, 1).getStack();
+		roi = BenchmarkData.star(vertices, BenchmarkData.WIDTH / 2, BenchmarkData.HEIGHT / 2,
+				BenchmarkData.WIDTH / 3, new Random(2));
+	}
+
+	@Benchmark
+	public ImageStack spanMask() {
+		SpanMask.fromRoi(roi, stack.getWidth(), stack.getHeight()).clearOutside(stack);
+		return stack;
+	}
+
+	@Benchmark
+	public ImageStack fillOutside() {
+		for (int s = 1; s <= stack.getSize(); s++) {
+			ImageProcessor ip = stack.getProcessor(s);
+			ip.setValue(0);
+			ip.fillOutside(roi);
+		}
+		return stack;
+	}
+}
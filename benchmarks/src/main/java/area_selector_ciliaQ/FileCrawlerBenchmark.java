@@ -0,0 +1,95 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pattern matching over a synthetic directory tree with the patterns of a
+ * typical run. ProcessSettings.matchPattern asks for the root directories in a
+ * file chooser, so the {@link FileCrawler} it delegates to is measured - once
+ * listing every directory and once with a warm {@link FileIndexCache} as in a
+ * repeated run.
+ *
+ * @author Sebastian Rassmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileCrawlerBenchmark {
+
+	/** depth 4 with fan-out 6 are 1555 directories */
+	@Param({ "2", "4" })
+	int depth;
+
+	@Param({ "6" })
+	int fanOut;
+
+	@Param({ "10", "100" })
+	int filesPerDir;
+
+	private File root, indexFile;
+	private FileIndexCache index;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("asc-bench").toFile();
+		BenchmarkData.tree(new File(root, "tree"), depth, fanOut, filesPerDir);
+		indexFile = new File(root, "fileindex.bin");
+		// directories modified within the last seconds are not cached, age the tree
+		touchTree(new File(root, "tree"));
+		index = FileIndexCache.load(indexFile);
+		crawler(index).crawl(roots());
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkData.delete(root);
+	}
+
+	@Benchmark
+	public List<File> crawl() {
+		return crawler(null).crawl(roots());
+	}
+
+	@Benchmark
+	public List<File> crawlCached() {
+		return crawler(index).crawl(roots());
+	}
+
+	private FileCrawler crawler(FileIndexCache cache) {
+		return new FileCrawler(".*_C1\\.tif", "", "skip", cache);
+	}
+
+	private File[] roots() {
+		return new File[] { new File(root, "tree") };
+	}
+
+	private static void touchTree(File dir) {
+		File[] children = dir.listFiles(File::isDirectory);
+		if (children != null) {
+			for (File child : children) {
+				touchTree(child);
+			}
+		}
+		dir.setLastModified(System.currentTimeMillis() - 60000);
+	}
+}
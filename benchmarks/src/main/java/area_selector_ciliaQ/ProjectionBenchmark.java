@@ -0,0 +1,59 @@
+package area_selector_ciliaQ;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+import ij.process.ImageProcessor;
+
+/**
+ * Max projection of a stack: {@link Projector} against ImageJ's ZProjector.
+ *
+ * @author Sebastian Rassmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ProjectionBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	@Param({ "16", "64" })
+	int slices;
+
+	private ImagePlus imp;
+
+	@Setup
+	public void setup() {
+		imp = BenchmarkData.stack(bitDepth, slices, 1);
+	}
+
+	@Benchmark
+	public ImageProcessor projector() {
+		return Projector.maxProjection(imp.getStack());
+	}
+
+	@Benchmark
+	public ImagePlus zProjector() {
+		ZProjector zp = new ZProjector(imp);
+		zp.setMethod(ZProjector.MAX_METHOD);
+		zp.doProjection();
+		return zp.getProjection();
+	}
+}
@@ -0,0 +1,69 @@
+package area_selector_ciliaQ;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+/**
+ * Union of a ROI set: raster union of span lists ({@link SpanMask#fromRois})
+ * against the geometric ShapeRoi union of RoiManager "Combine", both up to the
+ * mask used for clearing.
+ *
+ * @author Sebastian Rassmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RoiCombineBenchmark {
+
+	@Param({ "2", "16", "64" })
+	int rois;
+
+	@Param({ "16", "256", "1024" })
+	int vertices;
+
+	private Roi[] set;
+
+	@Setup
+	public void setup() {
+		set = BenchmarkData.rois(rois, vertices, 3);
+	}
+
+	@Benchmark
+	public SpanMask rasterUnion() {
+		return SpanMask.fromRois(set, BenchmarkData.WIDTH, BenchmarkData.HEIGHT);
+	}
+
+	/**
+	 * Raster union including the outline traced for the z-projection overlay.
+	 */
+	@Benchmark
+	public Roi rasterUnionWithOutline() {
+		return SpanMask.fromRois(set, BenchmarkData.WIDTH, BenchmarkData.HEIGHT).toRoi();
+	}
+
+	@Benchmark
+	public SpanMask shapeRoiUnion() {
+		ShapeRoi union = new ShapeRoi(set[0]);
+		for (int i = 1; i < set.length; i++) {
+			union = union.or(new ShapeRoi(set[i]));
+		}
+		return SpanMask.fromRoi(union.trySimplify(), BenchmarkData.WIDTH, BenchmarkData.HEIGHT);
+	}
+}
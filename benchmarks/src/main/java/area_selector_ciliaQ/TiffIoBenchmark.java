@@ -0,0 +1,119 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Reading and writing tiff stacks in a temporary directory (on the default
+ * temp file system, set -Djava.io.tmpdir to measure another storage): loading
+ * the stack to memory, opening it virtual or memory-mapped and writing it with
+ * the FileSaver used for the plugin's outputs or compressed by the
+ * {@link CompressedTiffWriter}.
+ *
+ * @author Sebastian Rassmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TiffIoBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	@Param({ "16", "64" })
+	int slices;
+
+	private File dir;
+	private String input, output;
+	private ImagePlus imp;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("asc-bench").toFile();
+		imp = BenchmarkData.stack(bitDepth, slices, 1);
+		input = new File(dir, "in.tif").getPath();
+		output = new File(dir, "out.tif").getPath();
+		if (!HeadlessProcessing.save(imp, input)) {
+			throw new IOException("could not write " + input);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public ImagePlus read() {
+		return IJ.openImage(input);
+	}
+
+	/**
+	 * Opening as virtual stack and reading every slice once, as the projection of
+	 * a streamed main channel does.
+	 */
+	@Benchmark
+	public Object readVirtual() {
+		ImagePlus virtual = IJ.openVirtual(input);
+		Object last = null;
+		for (int s = 1; s <= virtual.getStackSize(); s++) {
+			last = virtual.getStack().getPixels(s);
+		}
+		return last;
+	}
+
+	@Benchmark
+	public Object readMapped() {
+		ImagePlus mapped = MappedTiffStack.open(input);
+		Object last = null;
+		try {
+			for (int s = 1; s <= mapped.getStackSize(); s++) {
+				last = mapped.getStack().getPixels(s);
+			}
+		} finally {
+			HeadlessProcessing.closeImage(mapped);
+		}
+		return last;
+	}
+
+	@Benchmark
+	public boolean write() {
+		return HeadlessProcessing.save(imp, output);
+	}
+
+	@Benchmark
+	public boolean writeDeflate() {
+		return HeadlessProcessing.save(imp, output, CompressedTiffWriter.DEFLATE);
+	}
+
+	@Benchmark
+	public boolean writeLzw() {
+		return HeadlessProcessing.save(imp, output, CompressedTiffWriter.LZW);
+	}
+
+	@Benchmark
+	public boolean writePackBits() {
+		return HeadlessProcessing.save(imp, output, CompressedTiffWriter.PACKBITS);
+	}
+}
@@ -0,0 +1,197 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import ij.IJ;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * Limits the images held in memory by concurrent tasks (prefetching, parallel
+ * pipeline) to a fraction of the max heap. The working set of a task is
+ * estimated from the TIFF headers of its channels before any pixels are read;
+ * a task is only admitted while the estimates of all admitted tasks fit into
+ * the budget. Decisions are logged to the {@link ProgressDialog}, so -Xmx can
+ * be sized from them.
+ *
+ * @author Sebastian Rassmann
+ */
+public class AdmissionController {
+
+	private final long budget;
+	private final ProgressDialog pD;
+	private final Map<Integer, Long> admitted = new HashMap<Integer, Long>();
+	private long inUse = 0;
+
+	/**
+	 * @param budget max sum of the estimates of admitted tasks in bytes
+	 * @param pD     receives the decisions, may be null
+	 */
+	public AdmissionController(long budget, ProgressDialog pD) {
+		this.budget = budget;
+		this.pD = pD;
+	}
+
+	/**
+	 * Budget of the configured fraction of the max heap.
+	 */
+	static AdmissionController forSettings(ProcessSettings pS, ProgressDialog pD) {
+		return new AdmissionController((long) (Runtime.getRuntime().maxMemory() * pS.heapFraction), pD);
+	}
+
+	/**
+	 * Admits the task if its estimate fits into the remaining budget.
+	 *
+	 * @return false if the task was not admitted, e.g. it should not be prefetched
+	 */
+	synchronized boolean tryAdmit(int task, String name, long bytes) {
+		if (admitted.containsKey(task)) {
+			return true;
+		}
+		if (inUse + bytes > budget) {
+			log(name + ": not loaded in advance, needs " + format(bytes) + " - " + usage());
+			return false;
+		}
+		add(task, name, bytes);
+		return true;
+	}
+
+	/**
+	 * Blocks until the task fits into the budget. A task is always admitted if no
+	 * other task is, even if it exceeds the budget alone.
+	 */
+	synchronized void admit(int task, String name, long bytes) throws InterruptedException {
+		if (admitted.containsKey(task)) {
+			return;
+		}
+		if (inUse > 0 && inUse + bytes > budget) {
+			log(name + ": waiting for memory, needs " + format(bytes) + " - " + usage());
+			while (inUse > 0 && inUse + bytes > budget) {
+				wait();
+			}
+		}
+		add(task, name, bytes);
+	}
+
+	/**
+	 * Admits the task without waiting, for tasks that have to run now (e.g. the
+	 * image the user works on).
+	 */
+	synchronized void forceAdmit(int task, String name, long bytes) {
+		if (!admitted.containsKey(task)) {
+			add(task, name, bytes);
+		}
+	}
+
+	/**
+	 * Returns the budget of the task once its images were released.
+	 */
+	synchronized void release(int task) {
+		Long bytes = admitted.remove(task);
+		if (bytes != null) {
+			inUse -= bytes;
+			notifyAll();
+		}
+	}
+
+	private void add(int task, String name, long bytes) {
+		admitted.put(task, bytes);
+		inUse += bytes;
+		if (inUse > budget) { // admissions within the budget are not logged, there is one per task
+			log(name + ": admitted above the budget, needs " + format(bytes) + " - " + usage()
+					+ " - consider increasing the max heap (-Xmx)");
+		}
+	}
+
+	private String usage() {
+		return admitted.size() + " task(s) hold " + format(inUse) + " of " + format(budget);
+	}
+
+	private void log(String message) {
+		if (pD != null) {
+			pD.notifyMessage(message, ProgressDialog.LOG);
+		} else {
+			IJ.log(message);
+		}
+	}
+
+	/**
+	 * Estimated heap required by the images of a task: both channels as loaded
+	 * (a streamed main channel or a memory-mapped helper channel needs single
+	 * planes only), a 32-bit copy of both for the merge if the bit depths
+	 * differ (interactive only), the merged projection and the further channels
+	 * edited with the same ROIs.
+	 *
+	 * @param headless true if processed by {@link HeadlessProcessing}
+	 */
+	static long estimate(String path, String name, ProcessSettings pS, boolean headless) {
+		long[] c1 = channel(header(path + name), pS.mainChannelToRead());
+		long[] c2 = channel(header(path + pS.helperName(name)), pS.helperChannelToRead());
+		long planePixels = c1[0] * c1[1];
+		long bytes = headless && pS.streamingOutput ? 2 * planePixels * c1[3] : size(c1);
+		bytes += headless && pS.memoryMapped ? planePixels * c2[3] : size(c2);
+		if (!headless && c1[3] != c2[3]) {
+			bytes += 4 * planePixels * (c1[2] + c2[2]); // merge converted to 32-bit
+		}
+		String[] targets = pS.additionalTargets(name);
+		int[] channels = pS.additionalChannelsToRead();
+		for (int i = 0; i < targets.length; i++) {
+			long[] t = channel(header(path + targets[i]), channels[i]);
+			bytes += headless && pS.streamingOutput ? 2 * t[0] * t[1] * t[3] : size(t);
+		}
+		return bytes + 2 * 4 * planePixels; // projections
+	}
+
+	/**
+	 * @return width, height, planes, bytes per pixel and channels of a tif - for
+	 *         other or unreadable files an equivalent of the file size
+	 */
+	static long[] header(String path) {
+		long[] header = tiffHeader(path);
+		return header != null ? header : new long[] { Math.max(1, new File(path).length()), 1, 1, 1, 1 };
+	}
+
+	/**
+	 * @return width, height, planes, bytes per pixel and channels of a tif or
+	 *         null if the file is no readable tif
+	 */
+	static long[] tiffHeader(String path) {
+		File file = new File(path);
+		try {
+			FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+			if (info != null && info.length > 0 && info[0].getBytesPerPixel() > 0) {
+				int planes = info.length == 1 ? Math.max(1, info[0].nImages) : info.length;
+				return new long[] { info[0].width, info[0].height, planes, info[0].getBytesPerPixel(),
+						MappedTiffStack.descriptionValue(info[0].description, "channels", 1) };
+			}
+		} catch (IOException e) {
+			// no tif
+		}
+		return null;
+	}
+
+	/**
+	 * @param channel channel read from the file, 0 for all planes
+	 * @return the header reduced to the planes of the channel
+	 */
+	static long[] channel(long[] header, int channel) {
+		if (channel <= 0 || header[4] <= 1) {
+			return header;
+		}
+		long[] reduced = header.clone();
+		reduced[2] = Math.max(1, header[2] / header[4]);
+		return reduced;
+	}
+
+	private static long size(long[] header) {
+		return header[0] * header[1] * header[2] * header[3];
+	}
+
+	static String format(long bytes) {
+		return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+}
@@ -0,0 +1,355 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ij.IJ;
+
+/**
+ * Command line entry point for batches with existing sets of Rois, processed
+ * without windows (run with -Djava.awt.headless=true). Several processes - on
+ * one or on different machines sharing the file system - can work on the same
+ * task list concurrently: each task is claimed through {@link TaskLeases} in
+ * its output dir, so every task is processed once and tasks of crashed
+ * processes are taken over once their lease expired.
+ *
+ * Usage: java -cp ... area_selector_ciliaQ.BatchCommandLine (--list files.txt |
+ * --root dir [--root dir ...]) [options], see {@link #USAGE}.
+ *
+ * Exits with 0 if all tasks of this process succeeded, 1 if one failed and 2
+ * on invalid arguments.
+ *
+ * @author Sebastian Rassmann
+ */
+public class BatchCommandLine {
+
+	static final String USAGE = "Usage: BatchCommandLine (--list <txt with one file per line> | --root <dir> ...)"
+			+ " [options]\n"
+			+ "  --main <pattern>        pattern of the channel to edit (also matched in files below --root)\n"
+			+ "  --helper <pattern>      pattern of the channel the Rois were drawn on\n"
+			+ "  --suffix <suffix>       suffix of edited files\n"
+			+ "  --further <patterns>    further channels to edit, comma-separated\n"
+			+ "  --channels <main,helper> read the channels from multi-channel tifs\n"
+			+ "  --exclude <pattern>     exclude files matching the pattern (regex)\n"
+			+ "  --exclude-dir <pattern> exclude dirs matching the pattern (regex)\n"
+			+ "  --output <dir>          write all results to dir instead of next to the inputs\n"
+			+ "  --threads <n>           tasks processed concurrently by this process (default 1)\n"
+			+ "  --lease <seconds>       lease after which a claim of a dead process is taken over (default 600)\n"
+			+ "  --worker <name>         name of this process in the claims (default pid@host)\n"
+			+ "  --compression <none|deflate|LZW|PackBits>\n"
+			+ "  --crop <margin>         crop edited stacks to the Rois plus margin\n"
+			+ "  --streaming             clear and write edited stacks slice by slice\n"
+			+ "  --memory-mapped         read uncompressed tifs memory-mapped\n"
+			+ "  --skip-up-to-date       skip tasks recorded as up to date in the manifest";
+
+	public static void main(String[] args) {
+		ProcessSettings pS = ProcessSettings.initWithoutTasks();
+		pS.importRois = true;
+		List<File> roots = new ArrayList<File>();
+		String list = null, worker = defaultWorker();
+		int threads = 1;
+		long leaseSeconds = 600;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--streaming")) {
+					pS.streamingOutput = true;
+				} else if (arg.equals("--memory-mapped")) {
+					pS.memoryMapped = true;
+				} else if (arg.equals("--skip-up-to-date")) {
+					pS.skipUpToDate = true;
+				} else if (i + 1 < args.length) {
+					String value = args[++i];
+					switch (arg) {
+					case "--list":
+						list = value;
+						break;
+					case "--root":
+						roots.add(new File(value));
+						break;
+					case "--main":
+						pS.mainPattern = value;
+						break;
+					case "--helper":
+						pS.helperPattern = value;
+						break;
+					case "--suffix":
+						pS.suffixEdited = value;
+						break;
+					case "--further":
+						pS.additionalMainPatterns = value;
+						break;
+					case "--channels":
+						String[] channels = value.split(",");
+						pS.multiChannel = true;
+						pS.mainChannel = Integer.parseInt(channels[0].trim());
+						pS.helperChannel = Integer.parseInt(channels[1].trim());
+						break;
+					case "--exclude":
+						pS.negFilePattern = value;
+						break;
+					case "--exclude-dir":
+						pS.negDirPattern = value;
+						break;
+					case "--output":
+						pS.resultsToNewFolder = true;
+						pS.resultsDir = value.endsWith(File.separator) ? value : value + File.separator;
+						break;
+					case "--threads":
+						threads = Math.max(1, Integer.parseInt(value));
+						break;
+					case "--lease":
+						leaseSeconds = Math.max(1, Long.parseLong(value));
+						break;
+					case "--worker":
+						worker = value;
+						break;
+					case "--compression":
+						pS.outputCompression = ProcessSettings.COMPRESSIONS[compression(value)];
+						break;
+					case "--crop":
+						pS.cropToRois = true;
+						pS.cropMargin = Math.max(0, Integer.parseInt(value));
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option " + arg);
+					}
+				} else {
+					throw new IllegalArgumentException("unknown option or missing value: " + arg);
+				}
+			}
+			if ((list == null) == roots.isEmpty()) {
+				throw new IllegalArgumentException("either --list or --root is required");
+			}
+		} catch (RuntimeException e) { // includes NumberFormatException, index out of bounds
+			System.err.println("Invalid arguments: " + e.getMessage() + "\n" + USAGE);
+			System.exit(2);
+			return;
+		}
+
+		try {
+			if (list != null) {
+				pS.addTasksFromTxt(new File(list));
+			} else {
+				pS.posFilePattern = ProcessSettings.transformStringToRegex(pS.mainPattern);
+				pS.addMatchingFiles(roots.toArray(new File[roots.size()]));
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read the task list: " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		int failed = run(pS, worker, threads, leaseSeconds * 1000);
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Processes one claimed task.
+	 */
+	interface TaskProcessor {
+		/**
+		 * @return null if the task succeeded (or was up to date), the error otherwise
+		 */
+		String process(int task, String path, String name, String outputDir);
+	}
+
+	/**
+	 * Processes all tasks of pS that can be claimed, with the given number of
+	 * threads, and waits until no task is left to claim.
+	 *
+	 * @return number of tasks that failed in this process
+	 */
+	static int run(ProcessSettings pS, String worker, int threads, long leaseMillis) {
+		IJ.log(worker + ": " + pS.getNOfTasks() + " task(s) in the list");
+		List<PreflightCheck.Problem> problems = PreflightCheck.checkAll(pS, true, Math.max(threads, 8));
+		for (PreflightCheck.Problem problem : problems) {
+			if (problem.fatal) {
+				pS.removeTask(problem.task);
+			}
+			IJ.log(worker + ": " + problem + (problem.fatal ? " - skipped" : ""));
+		}
+		AdmissionController admission = AdmissionController.forSettings(pS, null);
+		return run(pS, worker, threads, leaseMillis,
+				(task, path, name, outputDir) -> process(task, path, name, outputDir, pS, admission));
+	}
+
+	/**
+	 * Claims and processes the tasks of pS in passes over the task list until
+	 * every task that was not removed is finished - by this or another process.
+	 * Tasks held by a live lease are retried in the next pass, after a quarter
+	 * of the lease, so tasks of a process that dies meanwhile are taken over
+	 * once its lease expired.
+	 *
+	 * @return number of tasks that failed in this process
+	 */
+	static int run(ProcessSettings pS, String worker, int threads, long leaseMillis, TaskProcessor processor) {
+		int n = pS.getNOfTasks();
+		Map<String, TaskLeases> leases = new HashMap<String, TaskLeases>();
+		Set<String> unusableDirs = new HashSet<String>(); // claims dir can't be created
+		AtomicIntegerArray settled = new AtomicIntegerArray(n); // 1 once the task needs no further pass
+		AtomicInteger processed = new AtomicInteger(), failed = new AtomicInteger();
+		// processes start at different tasks to meet less often on the same lock
+		int offset = n == 0 ? 0 : Math.floorMod(worker.hashCode(), n);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(pool.submit(() -> {
+				while (true) {
+					boolean open = false, claimed = false;
+					for (int i = 0; i < n; i++) {
+						int task = (offset + i) % n;
+						if (settled.get(task) != 0) {
+							continue;
+						}
+						if (pS.getTaskState(task) != TaskTable.PENDING) {
+							settled.set(task, 1); // failed the pre-flight check or finished by this process
+							continue;
+						}
+						String path = pS.getPath(task), name = pS.getName(task), outputDir = pS.getOutputDir(task);
+						TaskLeases claims;
+						synchronized (leases) {
+							claims = leases.get(outputDir);
+							if (claims == null && !unusableDirs.contains(outputDir)) {
+								try {
+									claims = new TaskLeases(new File(outputDir), worker, leaseMillis);
+									leases.put(outputDir, claims);
+								} catch (IOException e) {
+									IJ.log(worker + ": " + e.getMessage());
+									unusableDirs.add(outputDir);
+								}
+							}
+							if (claims == null) { // only this task fails, counted by the first thread
+								if (pS.getTaskState(task) == TaskTable.PENDING) {
+									pS.setTaskDone(task, false);
+									failed.incrementAndGet();
+									IJ.log(worker + ": " + name + " failed - output dir " + outputDir + " is not usable");
+								}
+								settled.set(task, 1);
+								continue;
+							}
+						}
+						String key = TaskLeases.key(path, name);
+						if (claims.isFinished(key)) {
+							settled.set(task, 1); // finished by another process
+							continue;
+						}
+						TaskLeases.Lease lease = claims.tryClaim(key);
+						if (lease == null) {
+							open = true; // held by another process / thread, retried in the next pass
+							continue;
+						}
+						claimed = true;
+						String error = processor.process(task, path, name, outputDir);
+						if (!lease.complete(error == null, error)) {
+							IJ.log(worker + ": " + name + " - lease lost while processing, left to the new holder");
+							open = true;
+							continue;
+						}
+						settled.set(task, 1);
+						pS.setTaskDone(task, error == null);
+						if (error != null) {
+							failed.incrementAndGet();
+							IJ.log(worker + ": " + name + " failed - " + error);
+						} else {
+							processed.incrementAndGet();
+							IJ.log(worker + ": " + name + " done");
+						}
+					}
+					if (!open) {
+						return;
+					}
+					if (!claimed) { // wait for leases of other processes to finish or expire
+						try {
+							Thread.sleep(Math.max(1, leaseMillis / 4));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<?> f : workers) {
+			try {
+				f.get();
+			} catch (Exception e) {
+				IJ.log(worker + ": worker thread failed (" + e + ")");
+				failed.incrementAndGet();
+			}
+		}
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (TaskLeases claims : leases.values()) {
+			claims.shutdown();
+		}
+		TaskManifest.releaseAll();
+		IJ.log(worker + ": finished, " + processed.get() + " task(s) processed, " + failed.get() + " failed");
+		return failed.get();
+	}
+
+	/**
+	 * @return null if the task succeeded (or was up to date), the error otherwise
+	 */
+	private static String process(int task, String path, String name, String outputDir, ProcessSettings pS,
+			AdmissionController admission) {
+		if (Processing.needsUserInput(path, name, pS)) {
+			return "no set of Rois found";
+		}
+		TaskManifest manifest = TaskManifest.forDir(outputDir);
+		if (pS.skipUpToDate && manifest.isUpToDate(path, name, outputDir, pS)) {
+			return null;
+		}
+		try {
+			admission.admit(task, name, AdmissionController.estimate(path, name, pS, true));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "interrupted";
+		}
+		try {
+			if (!HeadlessProcessing.doProcessing(path, name, outputDir, pS, null, null)) {
+				return "processing failed, see log";
+			}
+		} finally {
+			admission.release(task);
+		}
+		if (pS.skipUpToDate) {
+			try {
+				manifest.record(path, name, outputDir, pS);
+			} catch (IOException e) {
+				IJ.log(name + ": could not update manifest (" + e.getMessage() + ")");
+			}
+		}
+		return null;
+	}
+
+	private static int compression(String name) {
+		for (int i = 0; i < ProcessSettings.COMPRESSIONS.length; i++) {
+			if (ProcessSettings.COMPRESSIONS[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("unknown compression " + name);
+	}
+
+	private static String defaultWorker() {
+		return ManagementFactory.getRuntimeMXBean().getName(); // pid@host
+	}
+}
@@ -0,0 +1,154 @@
+package area_selector_ciliaQ;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unattended throughput mode for batches in which every image has its
+ * _Rois.zip. Tasks run as staged pipeline (read -> decode ROIs -> clear
+ * outside -> write) on the stages of {@link HeadlessProcessing}: reading and
+ * writing share a bounded I/O pool, decoding and clearing a bounded CPU pool.
+ * The number of tasks in flight is limited - by count and by the heap their
+ * images need, see {@link AdmissionController} - so the submitting loop blocks
+ * (back-pressure) until a task has left the pipeline and its images were
+ * released.
+ *
+ * @author Sebastian Rassmann
+ */
+public class BatchPipeline {
+
+	private final ExecutorService ioPool, cpuPool;
+	private final Semaphore inFlight;
+
+	private ProgressDialog pD;
+	private ProcessSettings pS;
+	private boolean[] finished;
+	private int nextToReport = 0;
+
+	/**
+	 * @param ioThreads   threads reading and writing images
+	 * @param cpuThreads  threads decoding ROIs, projecting and clearing
+	 * @param maxInFlight max number of tasks whose images are held in memory at
+	 *                    the same time
+	 */
+	public BatchPipeline(int ioThreads, int cpuThreads, int maxInFlight) {
+		this.ioPool = Executors.newFixedThreadPool(Math.max(1, ioThreads));
+		this.cpuPool = Executors.newFixedThreadPool(Math.max(1, cpuThreads));
+		this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+	}
+
+	/**
+	 * Pipeline sized by the settings; tasks in flight = one per thread.
+	 */
+	static BatchPipeline fromSettings(ProcessSettings pS) {
+		return new BatchPipeline(pS.ioThreads, pS.cpuThreads, pS.ioThreads + pS.cpuThreads);
+	}
+
+	/**
+	 * Processes all tasks of pS and blocks until the last one has been written.
+	 */
+	public void run(final ProcessSettings pS, ProgressDialog pD) throws InterruptedException {
+		run(pS, pD, null);
+	}
+
+	/**
+	 * @param timer receives the time spent per stage, may be null
+	 */
+	public void run(final ProcessSettings pS, ProgressDialog pD, StageTimer timer) throws InterruptedException {
+		this.pD = pD;
+		this.pS = pS;
+		this.finished = new boolean[pS.getNOfTasks()];
+		this.nextToReport = 0;
+		AdmissionController admission = AdmissionController.forSettings(pS, pD);
+
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[pS.getNOfTasks()];
+		for (int task = 0; task < pS.getNOfTasks(); task++) {
+			final int taskIndex = task;
+			final HeadlessProcessing.Job job = new HeadlessProcessing.Job(pS.getPath(task), pS.getName(task),
+					pS.getOutputDir(task), pS, timer);
+			if (pS.isRemoved(task)) { // e.g. excluded by the pre-flight check
+				futures[task] = CompletableFuture.completedFuture(null);
+				taskDone(taskIndex, job.name, null);
+				continue;
+			}
+			if (pS.skipUpToDate
+					&& TaskManifest.forDir(job.outputDir).isUpToDate(job.path, job.name, job.outputDir, pS)) {
+				futures[task] = CompletableFuture.completedFuture(null);
+				taskDone(taskIndex, job.name, null);
+				continue;
+			}
+			inFlight.acquire(); // blocks while the pipeline is full
+			admission.admit(taskIndex, job.name, AdmissionController.estimate(job.path, job.name, pS, true));
+			futures[task] = CompletableFuture.runAsync(() -> stage(() -> HeadlessProcessing.read(job, pS)), ioPool)
+					.thenRunAsync(() -> stage(() -> HeadlessProcessing.decodeRois(job, pS)), cpuPool)
+					.thenRunAsync(() -> HeadlessProcessing.clear(job, pS), cpuPool)
+					.thenRunAsync(() -> stage(() -> HeadlessProcessing.write(job, pS)), ioPool)
+					.thenRunAsync(() -> stage(() -> {
+						if (pS.skipUpToDate) {
+							TaskManifest.forDir(job.outputDir).record(job.path, job.name, job.outputDir, pS);
+						}
+					}), ioPool)
+					.whenComplete((result, error) -> {
+						job.close();
+						admission.release(taskIndex);
+						inFlight.release();
+						taskDone(taskIndex, job.name, error);
+					});
+		}
+		try {
+			CompletableFuture.allOf(futures).join();
+		} catch (CompletionException e) {
+			// failures were reported per task
+		}
+		shutdown();
+	}
+
+	private void shutdown() throws InterruptedException {
+		ioPool.shutdown();
+		cpuPool.shutdown();
+		ioPool.awaitTermination(1, TimeUnit.MINUTES);
+		cpuPool.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Reports failures and moves finished tasks in the {@link ProgressDialog} in
+	 * task order, as the dialog always moves the first remaining entry.
+	 */
+	private synchronized void taskDone(int task, String name, Throwable error) {
+		if (!pS.isRemoved(task)) {
+			pS.setTaskDone(task, error == null);
+		}
+		if (error != null) {
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause()
+					: error;
+			HeadlessProcessing.notifyError(pD, name + ": " + cause.getMessage());
+		}
+		finished[task] = true;
+		while (nextToReport < finished.length && finished[nextToReport]) {
+			if (pD != null) {
+				pD.moveTask(nextToReport);
+			}
+			nextToReport++;
+		}
+		if (pD != null && nextToReport < finished.length) {
+			pD.updateBarText("in progress (parallel)...");
+		}
+	}
+
+	private interface Stage {
+		void run() throws IOException;
+	}
+
+	private static void stage(Stage stage) {
+		try {
+			stage.run();
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * Writes grayscale stacks as compressed multi-page TIFF (one IFD per slice,
+ * little endian) that ImageJ and CiliaQ read like the uncompressed files of
+ * the FileSaver. Slices are cut into strips; the strips are compressed in
+ * parallel on the fork/join pool while earlier strips are written in order, so
+ * compression keeps all cores busy and the file is written sequentially.
+ * Slices are fetched one after another, virtual stacks (e.g.
+ * {@link MaskedStack}) are never held in memory completely. As compressed sizes
+ * are only known once written, the IFDs follow the pixel data at the end of
+ * the file.
+ *
+ * @author Sebastian Rassmann
+ */
+public class CompressedTiffWriter {
+
+	/** compression methods, index as in {@link ProcessSettings#COMPRESSIONS} */
+	static final int NONE = 0, DEFLATE = 1, LZW = 2, PACKBITS = 3;
+	private static final int[] TIFF_COMPRESSION = { 1, 8, 5, 32773 };
+
+	/** uncompressed bytes per strip */
+	private static final int STRIP_BYTES = 64 * 1024;
+
+	private static final int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258,
+			COMPRESSION = 259, PHOTO_INTERP = 262, IMAGE_DESCRIPTION = 270, STRIP_OFFSETS = 273,
+			SAMPLES_PER_PIXEL = 277, ROWS_PER_STRIP = 278, STRIP_BYTE_COUNT = 279, X_RESOLUTION = 282,
+			Y_RESOLUTION = 283, RESOLUTION_UNIT = 296, SAMPLE_FORMAT = 339, META_DATA_BYTE_COUNTS = 50838,
+			META_DATA = 50839;
+	private static final short BYTE = 1, ASCII = 2, SHORT = 3, LONG = 4, RATIONAL = 5;
+	/** ImageJ metadata types: header and "Info" property */
+	private static final int MAGIC_NUMBER = 0x494a494a, INFO = 0x696e666f, METADATA_HEADER_BYTES = 12;
+
+	private final int compression;
+
+	/**
+	 * @param compression {@link #DEFLATE}, {@link #LZW} or {@link #PACKBITS}
+	 */
+	public CompressedTiffWriter(int compression) {
+		if (compression <= NONE || compression >= TIFF_COMPRESSION.length) {
+			throw new IllegalArgumentException("unsupported compression " + compression);
+		}
+		this.compression = compression;
+	}
+
+	/**
+	 * Writes the stack with calibration, display range and "Info" property of the
+	 * image.
+	 *
+	 * @throws IOException with the cause if the file could not be written, a
+	 *                     partly written file is deleted
+	 */
+	public void save(ImagePlus imp, String path) throws IOException {
+		try {
+			write(imp, path);
+		} catch (IOException | RuntimeException e) {
+			new File(path).delete();
+			throw new IOException("saving " + path + " failed (" + e.getMessage() + ")", e);
+		}
+	}
+
+	void write(ImagePlus imp, String path) throws IOException {
+		ImageStack stack = imp.getStack();
+		int width = stack.getWidth(), height = stack.getHeight(), n = stack.getSize();
+		int bitDepth = imp.getBitDepth();
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+			throw new IllegalArgumentException("compressed output requires a 8, 16 or 32-bit grayscale stack");
+		}
+		int bytesPerPixel = bitDepth / 8;
+		int rowBytes = width * bytesPerPixel;
+		int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / rowBytes));
+		int stripsPerSlice = (height + rowsPerStrip - 1) / rowsPerStrip;
+		long[] stripOffsets = new long[n * stripsPerSlice];
+		long[] stripCounts = new long[n * stripsPerSlice];
+
+		try (FileChannel out = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.write(ByteBuffer.allocate(8)); // header, written last
+			long position = 8;
+
+			// compress strips in parallel, write them in order - bounded look-ahead
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			int window = 4 * pool.getParallelism();
+			ArrayDeque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<CompletableFuture<byte[]>>();
+			int written = 0;
+			for (int s = 1; s <= n; s++) {
+				final Object pixels = stack.getPixels(s);
+				for (int strip = 0; strip < stripsPerSlice; strip++) {
+					final int firstRow = strip * rowsPerStrip, rows = Math.min(rowsPerStrip, height - firstRow);
+					inFlight.add(CompletableFuture.supplyAsync(
+							() -> compress(toBytes(pixels, firstRow * width, rows * width), rowBytes), pool));
+					while (inFlight.size() >= window) {
+						position = writeStrip(out, inFlight.poll(), position, written++, stripOffsets, stripCounts);
+					}
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				position = writeStrip(out, inFlight.poll(), position, written++, stripOffsets, stripCounts);
+			}
+
+			byte[] description = description(imp, n).getBytes(StandardCharsets.ISO_8859_1);
+			long firstIfd = writeIfds(out, position, imp, width, height, bytesPerPixel, rowsPerStrip,
+					stripsPerSlice, stripOffsets, stripCounts, description, metaData(imp));
+			if (firstIfd > 0xffffffffL) {
+				throw new IOException("file exceeds 4 GB");
+			}
+			ByteBuffer header = order(ByteBuffer.allocate(8));
+			header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) firstIfd).flip();
+			out.write(header, 0);
+		}
+	}
+
+	private static long writeStrip(FileChannel out, CompletableFuture<byte[]> future, long position, int index,
+			long[] offsets, long[] counts) throws IOException {
+		byte[] data;
+		try {
+			data = future.join();
+		} catch (CompletionException e) {
+			throw new IOException("compression failed: " + e.getCause());
+		}
+		offsets[index] = position;
+		counts[index] = data.length;
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		return position + data.length;
+	}
+
+	/**
+	 * Writes one IFD per slice; the strip offsets and byte counts of each slice
+	 * and the shared description and resolution values follow the IFDs. As in
+	 * files of ImageJ, the ImageJ metadata is referenced by the first IFD only.
+	 *
+	 * @param metaData ImageJ metadata, null if there is none
+	 * @return offset of the first IFD
+	 */
+	private long writeIfds(FileChannel out, long position, ImagePlus imp, int width, int height, int bytesPerPixel,
+			int rowsPerStrip, int stripsPerSlice, long[] stripOffsets, long[] stripCounts, byte[] description,
+			byte[] metaData) throws IOException {
+		int n = stripOffsets.length / stripsPerSlice;
+		int entries = 15, firstEntries = metaData != null ? entries + 2 : entries;
+		int ifdSize = 2 + 12 * entries + 4, firstIfdSize = 2 + 12 * firstEntries + 4;
+		long descriptionOffset = position + firstIfdSize + (long) (n - 1) * ifdSize;
+		long resolutionOffset = descriptionOffset + ((description.length + 2) & ~1); // word aligned
+		long metaDataCountsOffset = resolutionOffset + 16, metaDataOffset = metaDataCountsOffset + 8;
+		long arraysOffset = metaData != null ? metaDataOffset + ((metaData.length + 1) & ~1) : metaDataCountsOffset;
+		boolean inline = stripsPerSlice == 1; // a single offset / count is stored in the entry
+		int arrayBytes = inline ? 0 : 2 * 4 * stripsPerSlice;
+		long end = arraysOffset + (long) n * arrayBytes;
+		if (end > 0xffffffffL) {
+			throw new IOException("file exceeds 4 GB");
+		}
+
+		Calibration cal = imp.getCalibration();
+		double xScale = cal != null && cal.pixelWidth > 0 ? 1.0 / cal.pixelWidth : 1.0;
+		double yScale = cal != null && cal.pixelHeight > 0 ? 1.0 / cal.pixelHeight : 1.0;
+		int sampleFormat = bytesPerPixel == 4 ? 3 : 1; // float or unsigned
+
+		ByteBuffer buffer = order(ByteBuffer.allocate((int) (end - position)));
+		for (int i = 0; i < n; i++) {
+			long arrays = arraysOffset + (long) i * arrayBytes;
+			buffer.putShort((short) (i == 0 ? firstEntries : entries));
+			entry(buffer, NEW_SUBFILE_TYPE, LONG, 1, 0);
+			entry(buffer, IMAGE_WIDTH, LONG, 1, width);
+			entry(buffer, IMAGE_LENGTH, LONG, 1, height);
+			entry(buffer, BITS_PER_SAMPLE, SHORT, 1, 8 * bytesPerPixel);
+			entry(buffer, COMPRESSION, SHORT, 1, TIFF_COMPRESSION[compression]);
+			entry(buffer, PHOTO_INTERP, SHORT, 1, 1); // black is zero
+			entry(buffer, IMAGE_DESCRIPTION, ASCII, description.length + 1, descriptionOffset);
+			entry(buffer, STRIP_OFFSETS, LONG, stripsPerSlice, inline ? stripOffsets[i] : arrays);
+			entry(buffer, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+			entry(buffer, ROWS_PER_STRIP, LONG, 1, rowsPerStrip);
+			entry(buffer, STRIP_BYTE_COUNT, LONG, stripsPerSlice,
+					inline ? stripCounts[i] : arrays + 4 * stripsPerSlice);
+			entry(buffer, X_RESOLUTION, RATIONAL, 1, resolutionOffset);
+			entry(buffer, Y_RESOLUTION, RATIONAL, 1, resolutionOffset + 8);
+			entry(buffer, RESOLUTION_UNIT, SHORT, 1, 1); // unit is given in the description
+			entry(buffer, SAMPLE_FORMAT, SHORT, 1, sampleFormat);
+			if (i == 0 && metaData != null) {
+				entry(buffer, META_DATA_BYTE_COUNTS, LONG, 2, metaDataCountsOffset);
+				entry(buffer, META_DATA, BYTE, metaData.length, metaDataOffset);
+			}
+			buffer.putInt(i < n - 1 ? (int) (position + firstIfdSize + (long) i * ifdSize) : 0);
+		}
+		buffer.put(description).put((byte) 0);
+		buffer.position((int) (resolutionOffset - position));
+		rational(buffer, xScale);
+		rational(buffer, yScale);
+		if (metaData != null) {
+			buffer.putInt(METADATA_HEADER_BYTES).putInt(metaData.length - METADATA_HEADER_BYTES);
+			buffer.put(metaData);
+			buffer.position((int) (arraysOffset - position));
+		}
+		if (!inline) {
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < stripsPerSlice; j++) {
+					buffer.putInt((int) stripOffsets[i * stripsPerSlice + j]);
+				}
+				for (int j = 0; j < stripsPerSlice; j++) {
+					buffer.putInt((int) stripCounts[i * stripsPerSlice + j]);
+				}
+			}
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer, position + buffer.position());
+		}
+		return position;
+	}
+
+	/**
+	 * ImageJ metadata with the "Info" property of the image (UTF-16 in file byte
+	 * order, as written by ImageJ's TiffEncoder).
+	 *
+	 * @return null if the image has no Info property
+	 */
+	private static byte[] metaData(ImagePlus imp) {
+		Object info = imp.getProperty("Info");
+		if (!(info instanceof String) || ((String) info).isEmpty()) {
+			return null;
+		}
+		String s = (String) info;
+		ByteBuffer buffer = order(ByteBuffer.allocate(METADATA_HEADER_BYTES + 2 * s.length()));
+		buffer.putInt(MAGIC_NUMBER).putInt(INFO).putInt(1);
+		buffer.asCharBuffer().put(s);
+		return buffer.array();
+	}
+
+	private static void rational(ByteBuffer buffer, double value) {
+		int denominator = value < 2000 ? 1000000 : 1;
+		buffer.putInt((int) Math.min(0xffffffffL, Math.round(value * denominator))).putInt(denominator);
+	}
+
+	private static void entry(ByteBuffer buffer, int tag, short type, int count, long value) {
+		buffer.putShort((short) tag).putShort(type).putInt(count);
+		if (type == SHORT && count == 1) {
+			buffer.putShort((short) value).putShort((short) 0);
+		} else {
+			buffer.putInt((int) value);
+		}
+	}
+
+	/**
+	 * ImageJ description without "images=": ImageJ reads stacks with this entry
+	 * as contiguous uncompressed data, without it every IFD is decoded.
+	 */
+	private static String description(ImagePlus imp, int n) {
+		StringBuilder sb = new StringBuilder("ImageJ=").append(IJ.getVersion()).append('\n');
+		if (n > 1) {
+			sb.append("slices=").append(n).append('\n');
+		}
+		Calibration cal = imp.getCalibration();
+		if (cal != null) {
+			String unit = cal.getUnit();
+			if (unit != null && !unit.equals("pixel")) {
+				sb.append("unit=").append(unit.equals("µm") ? "micron" : unit).append('\n');
+			}
+			if (n > 1 && cal.pixelDepth != 1.0) {
+				sb.append("spacing=").append(cal.pixelDepth).append('\n');
+			}
+			if (cal.xOrigin != 0.0) {
+				sb.append("xorigin=").append(cal.xOrigin).append('\n');
+			}
+			if (cal.yOrigin != 0.0) {
+				sb.append("yorigin=").append(cal.yOrigin).append('\n');
+			}
+		}
+		sb.append(String.format(Locale.ENGLISH, "min=%s\nmax=%s\n", imp.getDisplayRangeMin(), imp.getDisplayRangeMax()));
+		sb.append("loop=false\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Little endian bytes of pixels [from, from + length).
+	 */
+	static byte[] toBytes(Object pixels, int from, int length) {
+		if (pixels instanceof byte[]) {
+			return Arrays.copyOfRange((byte[]) pixels, from, from + length);
+		}
+		if (pixels instanceof short[]) {
+			ByteBuffer buffer = order(ByteBuffer.allocate(2 * length));
+			buffer.asShortBuffer().put((short[]) pixels, from, length);
+			return buffer.array();
+		}
+		ByteBuffer buffer = order(ByteBuffer.allocate(4 * length));
+		buffer.asFloatBuffer().put((float[]) pixels, from, length);
+		return buffer.array();
+	}
+
+	private static ByteBuffer order(ByteBuffer buffer) {
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	byte[] compress(byte[] data, int rowBytes) {
+		switch (compression) {
+		case DEFLATE:
+			return deflate(data);
+		case LZW:
+			return lzw(data);
+		default:
+			return packBits(data, rowBytes);
+		}
+	}
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(6));
+
+	static byte[] deflate(byte[] data) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] out = new byte[Math.max(64, data.length / 8)];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == out.length) {
+				out = Arrays.copyOf(out, 2 * out.length);
+			}
+			n += deflater.deflate(out, n, out.length - n);
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * PackBits, every row packed separately as the TIFF specification requires.
+	 */
+	static byte[] packBits(byte[] data, int rowBytes) {
+		byte[] out = new byte[data.length + (data.length + 127) / 128 + data.length / rowBytes + 1];
+		int n = 0;
+		for (int rowStart = 0; rowStart < data.length; rowStart += rowBytes) {
+			int rowEnd = Math.min(data.length, rowStart + rowBytes);
+			int i = rowStart;
+			while (i < rowEnd) {
+				int run = 1;
+				while (i + run < rowEnd && run < 128 && data[i + run] == data[i]) {
+					run++;
+				}
+				if (run > 2) { // shorter repetitions are cheaper as part of a literal run
+					out[n++] = (byte) (1 - run);
+					out[n++] = data[i];
+					i += run;
+					continue;
+				}
+				// literal run up to the next repetition of three bytes
+				int start = i;
+				while (i < rowEnd && i - start < 128
+						&& (i + 2 >= rowEnd || data[i] != data[i + 1] || data[i] != data[i + 2])) {
+					i++;
+				}
+				out[n++] = (byte) (i - start - 1);
+				System.arraycopy(data, start, out, n, i - start);
+				n += i - start;
+			}
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	private static final int CLEAR = 256, EOI = 257, FIRST = 258, MAX_CODE = 4095;
+
+	/**
+	 * TIFF LZW (MSB first codes, code width grows one code early) as written by
+	 * libtiff.
+	 */
+	static byte[] lzw(byte[] data) {
+		BitWriter out = new BitWriter(data.length / 2 + 16);
+		int[] keys = new int[8192], codes = new int[8192]; // open addressing: (prefix << 8 | byte) -> code
+		Arrays.fill(keys, -1);
+		int bits = 9, next = FIRST;
+		out.write(CLEAR, bits);
+		if (data.length == 0) {
+			out.write(EOI, bits);
+			return out.toByteArray();
+		}
+		int prefix = data[0] & 0xff;
+		for (int i = 1; i < data.length; i++) {
+			int b = data[i] & 0xff;
+			int key = prefix << 8 | b;
+			int slot = (key * 0x9E3779B1 >>> 19) & 8191;
+			while (keys[slot] != -1 && keys[slot] != key) {
+				slot = (slot + 1) & 8191;
+			}
+			if (keys[slot] == key) {
+				prefix = codes[slot];
+				continue;
+			}
+			out.write(prefix, bits);
+			keys[slot] = key;
+			codes[slot] = next++;
+			if (next == MAX_CODE - 1) { // table full
+				out.write(CLEAR, bits);
+				Arrays.fill(keys, -1);
+				bits = 9;
+				next = FIRST;
+			} else if (next > (1 << bits) - 1) {
+				bits++;
+			}
+			prefix = b;
+		}
+		out.write(prefix, bits);
+		next++;
+		if (next == MAX_CODE - 1) {
+			out.write(CLEAR, bits);
+			bits = 9;
+		} else if (next > (1 << bits) - 1) {
+			bits++;
+		}
+		out.write(EOI, bits);
+		return out.toByteArray();
+	}
+
+	private static class BitWriter {
+		private byte[] buffer;
+		private int n = 0, bitBuffer = 0, bitCount = 0;
+
+		BitWriter(int capacity) {
+			buffer = new byte[Math.max(16, capacity)];
+		}
+
+		void write(int code, int bits) {
+			bitBuffer = (bitBuffer << bits) | code;
+			bitCount += bits;
+			while (bitCount >= 8) {
+				if (n == buffer.length) {
+					buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				}
+				buffer[n++] = (byte) (bitBuffer >>> (bitCount - 8));
+				bitCount -= 8;
+			}
+			bitBuffer &= (1 << bitCount) - 1;
+		}
+
+		byte[] toByteArray() {
+			byte[] out = Arrays.copyOf(buffer, n + 1);
+			if (bitCount > 0) {
+				out[n] = (byte) (bitBuffer << (8 - bitCount));
+				return out;
+			}
+			return Arrays.copyOf(out, n);
+		}
+	}
+}
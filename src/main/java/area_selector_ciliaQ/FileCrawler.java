@@ -0,0 +1,180 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Searches directory trees for files to process. Subdirectories are listed in
+ * parallel on a fork/join pool, the patterns are compiled once, excluded
+ * directories are not entered at all and directories reached a second time
+ * (symlink loops) are skipped. With a {@link FileIndexCache}, unchanged
+ * directories are not listed again.
+ *
+ * Patterns have the semantics of {@link String#matches(String)}: the whole
+ * file or directory name has to match.
+ *
+ * @author Sebastian Rassmann
+ */
+public class FileCrawler {
+
+	private final Pattern posFilePattern, negFilePattern, negDirPattern;
+	private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+	private final FileIndexCache cache;
+
+	/**
+	 * @param posFilePattern regex to be matched in filenames
+	 * @param negFilePattern regex excluding files even if posFilePattern matches
+	 * @param negDirPattern  regex excluding directories and their content
+	 */
+	public FileCrawler(String posFilePattern, String negFilePattern, String negDirPattern) {
+		this(posFilePattern, negFilePattern, negDirPattern, null);
+	}
+
+	/**
+	 * @param cache index of directory listings, updated while crawling - may be
+	 *              null
+	 */
+	public FileCrawler(String posFilePattern, String negFilePattern, String negDirPattern, FileIndexCache cache) {
+		this.posFilePattern = Pattern.compile(posFilePattern);
+		this.negFilePattern = Pattern.compile(negFilePattern);
+		this.negDirPattern = Pattern.compile(negDirPattern);
+		this.cache = cache;
+	}
+
+	/**
+	 * @param roots directories where the search starts
+	 * @return matching files sorted by path
+	 */
+	public List<File> crawl(File[] roots) {
+		ForkJoinPool pool = new ForkJoinPool(2 * Runtime.getRuntime().availableProcessors());
+		List<File> files = new ArrayList<File>();
+		try {
+			List<DirTask> tasks = new ArrayList<DirTask>();
+			for (File root : roots) {
+				BasicFileAttributes attrs = root != null && root.isDirectory() ? firstVisit(root.toPath()) : null;
+				if (attrs != null) {
+					DirTask task = new DirTask(root.toPath(), attrs);
+					pool.execute(task);
+					tasks.add(task);
+				}
+			}
+			for (DirTask task : tasks) {
+				for (Path p : task.join()) {
+					files.add(p.toFile());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	boolean acceptsFile(String name) {
+		return posFilePattern.matcher(name).matches() && !negFilePattern.matcher(name).matches();
+	}
+
+	boolean acceptsDir(String name) {
+		return !negDirPattern.matcher(name).matches();
+	}
+
+	/**
+	 * @return attributes of the directory or null if it was already visited (e.g.
+	 *         through a symlink) or can't be read
+	 */
+	private BasicFileAttributes firstVisit(Path dir) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+			Object key = attrs.fileKey();
+			return visited.add(key != null ? key : dir.toRealPath()) ? attrs : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Listing of the directory, from the cache if the directory is unchanged.
+	 */
+	private FileIndexCache.Listing list(Path dir, BasicFileAttributes attrs) throws IOException {
+		long mtime = attrs.lastModifiedTime().toMillis();
+		String key = dir.toString();
+		FileIndexCache.Listing listing = cache != null ? cache.get(key, mtime) : null;
+		if (listing != null) {
+			return listing;
+		}
+		List<String> names = new ArrayList<String>();
+		List<Boolean> dirs = new ArrayList<Boolean>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				names.add(entry.getFileName().toString());
+				dirs.add(Files.isDirectory(entry));
+			}
+		}
+		boolean[] isDir = new boolean[dirs.size()];
+		for (int i = 0; i < isDir.length; i++) {
+			isDir[i] = dirs.get(i);
+		}
+		listing = new FileIndexCache.Listing(mtime, names.toArray(new String[names.size()]), isDir);
+		if (cache != null) {
+			cache.put(key, listing);
+		}
+		return listing;
+	}
+
+	/**
+	 * Lists one directory and forks a task per accepted subdirectory.
+	 */
+	private class DirTask extends RecursiveTask<List<Path>> {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final BasicFileAttributes attrs;
+
+		DirTask(Path dir, BasicFileAttributes attrs) {
+			this.dir = dir;
+			this.attrs = attrs;
+		}
+
+		@Override
+		protected List<Path> compute() {
+			List<Path> found = new ArrayList<Path>();
+			List<DirTask> subDirs = new ArrayList<DirTask>();
+			try {
+				FileIndexCache.Listing listing = list(dir, attrs);
+				for (int i = 0; i < listing.names.length; i++) {
+					String name = listing.names[i];
+					if (listing.dirs[i]) {
+						if (acceptsDir(name)) {
+							Path sub = dir.resolve(name);
+							BasicFileAttributes subAttrs = firstVisit(sub);
+							if (subAttrs != null) {
+								DirTask task = new DirTask(sub, subAttrs);
+								task.fork();
+								subDirs.add(task);
+							}
+						}
+					} else if (acceptsFile(name)) {
+						found.add(dir.resolve(name));
+					}
+				}
+			} catch (IOException e) {
+				// unreadable directory - skip like File.listFiles() returning nothing
+			}
+			for (DirTask sub : subDirs) {
+				found.addAll(sub.join());
+			}
+			return found;
+		}
+	}
+}
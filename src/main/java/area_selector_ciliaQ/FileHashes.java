@@ -0,0 +1,127 @@
+package area_selector_ciliaQ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ij.Prefs;
+
+/**
+ * Content hashes (SHA-256) of input files. A hash is computed once per file
+ * version: results are memorized by path, size and modification time and kept
+ * in the ImageJ preferences directory, so later runs don't read the file again
+ * to hash it.
+ *
+ * @author Sebastian Rassmann
+ */
+public class FileHashes {
+
+	private static final Map<String, String> memo = new ConcurrentHashMap<String, String>();
+	private static File memoFile = null;
+
+	/**
+	 * @return hex encoded SHA-256 of the file content
+	 * @throws IOException if the file can't be read
+	 */
+	public static String contentHash(File file) throws IOException {
+		loadMemo();
+		String version = file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+		String hash = memo.get(version);
+		if (hash == null) {
+			hash = hash(file);
+			memo.put(version, hash);
+			appendMemo(version, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the hash of the current file version if it was computed before,
+	 *         otherwise null - the file is not read
+	 */
+	public static String knownHash(File file) {
+		loadMemo();
+		return memo.get(file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified());
+	}
+
+	/**
+	 * @return hex encoded SHA-256 of path, size and modification time - changes
+	 *         with every new version of the file, without reading it
+	 */
+	public static String versionKey(File file) throws IOException {
+		String version = file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(version.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static synchronized void loadMemo() {
+		if (memoFile != null) {
+			return;
+		}
+		memoFile = new File(Prefs.getPrefsDir(), "AreaSelectorCiliaQ" + File.separator + "hashes.tsv");
+		if (!memoFile.exists()) {
+			return;
+		}
+		try (BufferedReader br = new BufferedReader(new FileReader(memoFile))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				int split = line.lastIndexOf('\t');
+				if (split > 0) {
+					memo.put(line.substring(0, split), line.substring(split + 1));
+				}
+			}
+		} catch (IOException e) {
+			// hashes are recomputed
+		}
+	}
+
+	private static synchronized void appendMemo(String version, String hash) {
+		try {
+			memoFile.getParentFile().mkdirs();
+			try (FileWriter out = new FileWriter(memoFile, true)) {
+				out.write(version + "\t" + hash + "\n");
+			}
+		} catch (IOException e) {
+			// only memorized for this run
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,185 @@
+package area_selector_ciliaQ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ij.Prefs;
+
+/**
+ * On-disk index of directory listings for repeated pattern matching runs. A
+ * listing is keyed by the directory path and valid as long as the modification
+ * time of the directory is unchanged (adding, removing or renaming entries
+ * changes it), so later scans only re-list directories that changed and match
+ * the patterns against the cached names. Listings of directories that were not
+ * visited in the last {@link #MAX_IDLE_RUNS} runs are dropped, and at most
+ * {@link #MAX_DIRS} listings are kept, so the index does not grow with every
+ * tree ever crawled.
+ *
+ * @author Sebastian Rassmann
+ */
+public class FileIndexCache {
+
+	private static final int VERSION = 2;
+	/** runs (saves) a listing is kept without being visited */
+	static final int MAX_IDLE_RUNS = 10;
+	/** listings kept, the least recently visited ones are dropped first */
+	static final int MAX_DIRS = 100000;
+	/** listings of directories modified this recently may still change within the mtime resolution */
+	private static final long RACY_MILLIS = 2000;
+
+	/**
+	 * Names of the entries of one directory and whether they are directories.
+	 */
+	static class Listing {
+		final long mtime;
+		final String[] names;
+		final boolean[] dirs;
+		volatile int lastRun; // run the directory was last visited in
+
+		Listing(long mtime, String[] names, boolean[] dirs) {
+			this.mtime = mtime;
+			this.names = names;
+			this.dirs = dirs;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+	private int run = 0; // number of this run, counted by the saves
+	private volatile boolean changed = false;
+
+	private FileIndexCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the index from the ImageJ preferences directory, an unreadable index
+	 * is ignored.
+	 */
+	public static FileIndexCache load() {
+		return load(new File(Prefs.getPrefsDir(), "AreaSelectorCiliaQ" + File.separator + "fileindex.bin"));
+	}
+
+	public static FileIndexCache load(File file) {
+		FileIndexCache cache = new FileIndexCache(file);
+		if (!file.exists()) {
+			return cache;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != VERSION) {
+				return cache;
+			}
+			cache.run = in.readInt() + 1;
+			int nDirs = in.readInt();
+			for (int d = 0; d < nDirs; d++) {
+				String dir = in.readUTF();
+				long mtime = in.readLong();
+				int lastRun = in.readInt();
+				int n = in.readInt();
+				String[] names = new String[n];
+				boolean[] dirs = new boolean[n];
+				for (int i = 0; i < n; i++) {
+					names[i] = in.readUTF();
+					dirs[i] = in.readBoolean();
+				}
+				Listing listing = new Listing(mtime, names, dirs);
+				listing.lastRun = lastRun;
+				cache.listings.put(dir, listing);
+			}
+		} catch (IOException e) {
+			cache.listings.clear(); // corrupt index, rebuild
+			cache.run = 0;
+		}
+		return cache;
+	}
+
+	/**
+	 * @return the cached listing if the directory did not change, otherwise null
+	 */
+	Listing get(String dir, long mtime) {
+		Listing listing = listings.get(dir);
+		if (listing == null || listing.mtime != mtime) {
+			return null;
+		}
+		if (listing.lastRun != run) {
+			listing.lastRun = run;
+			changed = true;
+		}
+		return listing;
+	}
+
+	void put(String dir, Listing listing) {
+		listing.lastRun = run;
+		if (System.currentTimeMillis() - listing.mtime < RACY_MILLIS) {
+			listings.remove(dir);
+		} else {
+			listings.put(dir, listing);
+		}
+		changed = true;
+	}
+
+	/**
+	 * Writes the index if it changed, without the listings not visited recently;
+	 * the file is replaced atomically.
+	 */
+	public void save() throws IOException {
+		if (!changed) {
+			return;
+		}
+		evict();
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+			out.writeInt(VERSION);
+			out.writeInt(run);
+			out.writeInt(listings.size());
+			for (Map.Entry<String, Listing> entry : listings.entrySet()) {
+				Listing listing = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(listing.mtime);
+				out.writeInt(listing.lastRun);
+				out.writeInt(listing.names.length);
+				for (int i = 0; i < listing.names.length; i++) {
+					out.writeUTF(listing.names[i]);
+					out.writeBoolean(listing.dirs[i]);
+				}
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changed = false;
+	}
+
+	/**
+	 * Drops listings not visited in the last {@link #MAX_IDLE_RUNS} runs and the
+	 * least recently visited ones beyond {@link #MAX_DIRS}.
+	 */
+	private void evict() {
+		listings.values().removeIf(listing -> run - listing.lastRun >= MAX_IDLE_RUNS);
+		if (listings.size() <= MAX_DIRS) {
+			return;
+		}
+		List<Map.Entry<String, Listing>> entries = new ArrayList<Map.Entry<String, Listing>>(listings.entrySet());
+		entries.sort(Comparator.comparingInt(entry -> entry.getValue().lastRun));
+		for (int i = 0; i < entries.size() - MAX_DIRS; i++) {
+			listings.remove(entries.get(i).getKey());
+		}
+	}
+
+}
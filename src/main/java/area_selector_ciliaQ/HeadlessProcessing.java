@@ -0,0 +1,537 @@
+package area_selector_ciliaQ;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.RoiDecoder;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * Window-free counterpart of {@link Processing#doProcessing}. All steps (load,
+ * apply ROI set, clear outside, save edited stack and z-projection) work
+ * directly on ImagePlus / ImageStack objects, so neither image windows nor the
+ * RoiManager are created and the plugin can run with
+ * -Djava.awt.headless=true.
+ *
+ * Only usable if no user interaction is required, i.e. if the ROI set of the
+ * image is imported from an existing _Rois.zip.
+ *
+ * @author Sebastian Rassmann
+ */
+public class HeadlessProcessing {
+
+	/**
+	 * State of one task while it passes the processing stages. Images are owned
+	 * by the job until {@link #close()} is called.
+	 */
+	static class Job {
+		final String path, name, outputDir;
+		final File roisFile;
+		ImagePlus c1, c2, zProj;
+		MappedTiffStack c1Pixels; // optional fast pixel source of a virtual c1
+		String[] targetNames; // further channels edited with the ROIs of c1
+		int[] targetChannels; // channels read from the target files, 0 = whole file
+		ImagePlus[] targets;
+		int roiCount;
+		Roi roisCombined;
+		SpanMask mask;
+		final StageTimer.Task timing;
+
+		/**
+		 * @param timer receives the time spent per stage, may be null
+		 */
+		Job(String path, String name, String outputDir, ProcessSettings pS, StageTimer timer) {
+			this.path = path;
+			this.name = name;
+			this.outputDir = outputDir;
+			this.roisFile = new File(pS.roisPath(path, name));
+			this.timing = StageTimer.task(timer, path, name);
+			this.targetNames = pS.additionalTargets(name);
+			this.targetChannels = pS.additionalChannelsToRead();
+			this.targets = new ImagePlus[targetNames.length];
+		}
+
+		void close() {
+			closeImage(c1);
+			closeImage(c2);
+			closeImage(zProj);
+			for (int i = 0; i < targets.length; i++) {
+				closeImage(targets[i]);
+				targets[i] = null;
+			}
+			if (c1Pixels != null) c1Pixels.close();
+			c1 = c2 = zProj = null;
+			c1Pixels = null;
+		}
+	}
+
+	/**
+	 * Processes one image pair with the ROI set stored next to the main channel.
+	 *
+	 * @param path      path to dir of the image
+	 * @param name      name of the image - path/image should be exact path of the
+	 *                  image to be processed
+	 * @param outputDir Path to dir where the output should be saved
+	 * @param pD        may be null if no {@link ProgressDialog} is available
+	 * @param timer     receives the time spent per stage, may be null
+	 * @return true if the edited stack and the z-projection were saved
+	 */
+	static boolean doProcessing(String path, String name, String outputDir, ProcessSettings pS, ProgressDialog pD,
+			StageTimer timer) {
+		Job job = new Job(path, name, outputDir, pS, timer);
+		try {
+			read(job, pS);
+			decodeRois(job, pS);
+			clear(job, pS);
+			write(job, pS);
+			return true;
+		} catch (IOException e) {
+			notifyError(pD, name + ": " + e.getMessage());
+			return false;
+		} finally {
+			job.close();
+		}
+	}
+
+	/**
+	 * Stage 1 (I/O): opens main and helper channel and the further channels to
+	 * edit. For streaming output the channels to edit are only opened as virtual
+	 * stacks, their slices are read when projecting and when writing.
+	 */
+	static void read(Job job, ProcessSettings pS) throws IOException {
+		long start = job.timing.start();
+		if (pS.streamingOutput) {
+			job.c1 = pS.openVirtualImage(job.path + job.name, pS.mainChannelToRead());
+			if (job.c1 != null && pS.memoryMapped && pS.mainChannelToRead() == 0) { // channels are mapped anyway
+				ImagePlus mapped = MappedTiffStack.open(job.path + job.name);
+				job.c1Pixels = mapped != null ? (MappedTiffStack) mapped.getStack() : null;
+			}
+			if (job.c1 != null && pS.mainChannelToRead() == 0) {
+				setOpenerDisplayRange(job.c1, job.c1Pixels);
+			}
+		}
+		if (job.c1 == null) {
+			job.c1 = pS.openImage(job.path + job.name, pS.mainChannelToRead());
+		}
+		if (job.c1 == null) {
+			throw new IOException("could not open main channel");
+		}
+		openTargets(job.path, job.targetNames, job.targetChannels, job.targets, job.c1.getWidth(),
+				job.c1.getHeight(), pS, pS.streamingOutput);
+		job.timing.stop(StageTimer.OPEN_MAIN, start);
+		job.timing.read(job.path + job.name);
+		for (String target : job.targetNames) {
+			job.timing.read(job.path + target);
+		}
+		String c2Name = pS.helperName(job.name);
+		ProjectionCache cache = ProjectionCache.forSettings(pS);
+		if (cache != null) {
+			start = job.timing.start();
+			job.zProj = cache.project(new File(job.path + job.name), new File(job.path + c2Name), pS, job.c1);
+			job.timing.stop(StageTimer.PROJECT, start);
+			if (job.zProj != null) {
+				return; // helper channel not needed
+			}
+		}
+		start = job.timing.start();
+		job.c2 = pS.openReadOnlyImage(job.path + c2Name, pS.helperChannelToRead()); // channel used to determine selection, only projected
+		if (job.c2 == null) {
+			throw new IOException("could not open helper channel " + c2Name);
+		}
+		job.timing.stop(StageTimer.OPEN_HELPER, start);
+		job.timing.read(job.path + c2Name);
+	}
+
+	/**
+	 * Stage 2 (CPU): gets the combined and rasterized ROI set - compiled from the
+	 * zip only if there is no up-to-date {@link RoiMaskCache} file - and projects
+	 * both channels unless the projection was cached. The helper channel is
+	 * released afterwards.
+	 */
+	static void decodeRois(Job job, ProcessSettings pS) throws IOException {
+		long start = job.timing.start();
+		RoiMaskCache.CompiledRois compiled = RoiMaskCache.load(job.roisFile, job.c1.getWidth(), job.c1.getHeight());
+		job.roiCount = compiled.roiCount;
+		job.roisCombined = compiled.combined;
+		job.mask = compiled.mask;
+		job.timing.stop(StageTimer.ROIS, start);
+		if (job.zProj != null) {
+			return;
+		}
+		start = job.timing.start();
+		ImageProcessor helperProjection = Projector.maxProjection(job.c2.getStack());
+		job.zProj = mergeProjections(Projector.maxProjection(job.c1.getStack()), helperProjection,
+				"MAX_" + job.c1.getTitle(), job.c1);
+		ProjectionCache cache = ProjectionCache.forSettings(pS);
+		if (cache != null) {
+			cache.put(new File(job.path + job.name), new File(job.path + pS.helperName(job.name)), pS,
+					helperProjection, job.zProj);
+		}
+		job.timing.stop(StageTimer.PROJECT, start);
+		closeImage(job.c2);
+		job.c2 = null;
+	}
+
+	/**
+	 * Stage 3 (CPU): clears the main channel and the further channels to edit
+	 * outside of the combined ROI - for virtual stacks deferred to writing, see
+	 * {@link MaskedStack} - and crops them to the ROI if selected.
+	 */
+	static void clear(Job job, ProcessSettings pS) {
+		long start = job.timing.start();
+		clearOutside(job.c1, job.mask, job.c1Pixels);
+		if (pS.cropToRois) {
+			cropToMask(job.c1, job.mask, pS.cropMargin);
+		}
+		clearTargets(job.targets, job.mask, pS);
+		job.timing.stop(StageTimer.CLEAR, start);
+		job.c1.deleteRoi();
+		job.c1.setOverlay(null);
+		job.zProj.setRoi(job.roisCombined);
+	}
+
+	/**
+	 * Stage 4 (I/O): saves edited stack, z-projection and - for multiple ROIs - the
+	 * ROI set to the output dir.
+	 */
+	static void write(Job job, ProcessSettings pS) throws IOException {
+		String name = job.name;
+		long start = job.timing.start();
+		if (job.roiCount > 1) {
+			copyRois(job.roisFile, new File(pS.roisPath(job.outputDir, name)));
+		}
+		save(job.c1, pS.editedPath(job.outputDir, name), pS.compression());
+		for (int i = 0; i < job.targets.length; i++) {
+			save(job.targets[i], pS.editedPath(job.outputDir, job.targetNames[i], job.targetChannels[i]),
+					pS.compression());
+		}
+		job.timing.stop(StageTimer.SAVE_EDITED, start); // includes reading and clearing streamed slices
+		job.timing.written(pS.editedPath(job.outputDir, name));
+		for (int i = 0; i < job.targets.length; i++) {
+			job.timing.written(pS.editedPath(job.outputDir, job.targetNames[i], job.targetChannels[i]));
+		}
+		start = job.timing.start();
+		if (!save(job.zProj, pS.zProjectionPath(job.outputDir, name))) {
+			throw new IOException("saving " + pS.zProjectionPath(job.outputDir, name) + " failed");
+		}
+		job.timing.stop(StageTimer.SAVE_PROJECTION, start);
+		job.timing.written(pS.zProjectionPath(job.outputDir, name));
+	}
+
+	/**
+	 * Reads all ROIs of a RoiManager zip file without opening the RoiManager.
+	 *
+	 * @param roisFile zip as written by RoiManager "Save"
+	 * @return ROIs in the order stored in the zip
+	 * @throws IOException if the file cannot be read
+	 */
+	static Roi[] loadRois(File roisFile) throws IOException {
+		ArrayList<Roi> rois = new ArrayList<Roi>();
+		ZipInputStream in = new ZipInputStream(new FileInputStream(roisFile));
+		try {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				String entryName = entry.getName();
+				if (!entryName.endsWith(".roi")) {
+					continue;
+				}
+				Roi roi = new RoiDecoder(readFully(in), entryName).getRoi();
+				if (roi != null) {
+					roi.setName(entryName.substring(0, entryName.length() - 4));
+					rois.add(roi);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return rois.toArray(new Roi[rois.size()]);
+	}
+
+	/**
+	 * Sets all voxels outside of the roi to 0 in every slice of the stack
+	 * (equivalent of IJ.run(imp, "Clear Outside", "stack") with black background).
+	 */
+	static void clearOutside(ImagePlus imp, Roi roi) {
+		clearOutside(imp, roi, null);
+	}
+
+	/**
+	 * Virtual stacks are replaced by a {@link MaskedStack} that clears each slice
+	 * when it is read (e.g. while saving).
+	 *
+	 * @param pixelSource optional faster source of the pixels of a virtual stack
+	 */
+	static void clearOutside(ImagePlus imp, Roi roi, ImageStack pixelSource) {
+		clearOutside(imp, SpanMask.fromRoi(roi, imp.getWidth(), imp.getHeight()), pixelSource);
+	}
+
+	/**
+	 * @param mask rasterized roi of the image size
+	 */
+	static void clearOutside(ImagePlus imp, SpanMask mask, ImageStack pixelSource) {
+		if (imp.getStack().isVirtual()) {
+			MaskedStack.apply(imp, mask, pixelSource);
+		} else {
+			mask.clearOutside(imp.getStack());
+		}
+	}
+
+	/**
+	 * Sets the display range of a tif opened as virtual stack like IJ.openImage
+	 * does, as it is written to the description of the output: from the
+	 * description if it has one, otherwise the range of the first slice - and
+	 * the range of all slices if that one is empty. IJ.openVirtual only looks at
+	 * the first slice.
+	 *
+	 * @param pixelSource optional faster stack with the same pixels
+	 */
+	static void setOpenerDisplayRange(ImagePlus imp, ImageStack pixelSource) {
+		int bitDepth = imp.getBitDepth();
+		if (bitDepth != 16 && bitDepth != 32) {
+			return;
+		}
+		FileInfo fi = imp.getOriginalFileInfo();
+		ImageStack stack = pixelSource != null ? pixelSource : imp.getStack();
+		double min, max;
+		if (fi != null && fi.description != null && fi.description.contains("min=")
+				&& fi.description.contains("max=")) { // read from the description by IJ.openVirtual as well
+			min = imp.getDisplayRangeMin();
+			max = imp.getDisplayRangeMax();
+		} else {
+			ImageProcessor ip = stack.getProcessor(1);
+			ip.resetMinAndMax();
+			min = ip.getMin();
+			max = ip.getMax();
+		}
+		if (min == max) { // e.g. blank first slice, range of the whole stack
+			for (int s = 1; s <= stack.getSize(); s++) {
+				ImageProcessor ip = stack.getProcessor(s);
+				ip.resetMinAndMax();
+				min = s == 1 ? ip.getMin() : Math.min(min, ip.getMin());
+				max = s == 1 ? ip.getMax() : Math.max(max, ip.getMax());
+			}
+		}
+		imp.setDisplayRange(min, max);
+	}
+
+	/**
+	 * Opens further channels to edit with the ROIs of the main channel.
+	 *
+	 * @param names    file names of the channels in path
+	 * @param channels channels to read from the files, 0 for whole files
+	 * @param targets  receives the images, closed again if one cannot be opened
+	 * @param width    width of the main channel, the channels must match its size
+	 * @param height   height of the main channel
+	 * @param virtual  open as virtual stacks, cleared while written
+	 */
+	static void openTargets(String path, String[] names, int[] channels, ImagePlus[] targets, int width,
+			int height, ProcessSettings pS, boolean virtual) throws IOException {
+		for (int i = 0; i < names.length; i++) {
+			targets[i] = virtual ? pS.openVirtualImage(path + names[i], channels[i]) : null;
+			if (targets[i] != null && channels[i] == 0) {
+				setOpenerDisplayRange(targets[i], null);
+			}
+			if (targets[i] == null) {
+				targets[i] = pS.openImage(path + names[i], channels[i]);
+			}
+			String label = channels[i] > 0 ? "channel " + channels[i] + " of " + names[i] : "channel " + names[i];
+			String error = targets[i] == null ? "could not open " + label
+					: targets[i].getWidth() != width || targets[i].getHeight() != height
+							? label + " differs in size from the main channel"
+							: null;
+			if (error != null) {
+				for (int j = 0; j <= i; j++) {
+					closeImage(targets[j]);
+					targets[j] = null;
+				}
+				throw new IOException(error);
+			}
+		}
+	}
+
+	/**
+	 * Clears (and crops, if selected) the further channels to edit with the mask
+	 * of the main channel - the channels in parallel.
+	 */
+	static void clearTargets(ImagePlus[] targets, SpanMask mask, ProcessSettings pS) {
+		Arrays.stream(targets).parallel().forEach(imp -> {
+			clearOutside(imp, mask, null);
+			if (pS.cropToRois) {
+				cropToMask(imp, mask, pS.cropMargin);
+			}
+			imp.deleteRoi();
+			imp.setOverlay(null);
+		});
+	}
+
+	/**
+	 * Crops every slice to the bounding box of the mask plus margin (limited to
+	 * the image). The offset of the crop is subtracted from the calibration
+	 * origin, so calibrated coordinates stay those of the original canvas. Offset
+	 * and canvas size are also added to the "Info" property (both are saved in
+	 * the tiff): {@value #CROP_X}, {@value #CROP_Y}, {@value #CANVAS_WIDTH} and
+	 * {@value #CANVAS_HEIGHT}. An empty mask leaves the image unchanged.
+	 *
+	 * @param mask rasterized roi of the image size
+	 */
+	static void cropToMask(ImagePlus imp, SpanMask mask, int margin) {
+		Rectangle bounds = mask.getBounds();
+		if (bounds == null) {
+			return;
+		}
+		bounds.grow(margin, margin);
+		Rectangle crop = bounds.intersection(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+		ImageStack stack = imp.getStack();
+		double min = imp.getDisplayRangeMin(), max = imp.getDisplayRangeMax();
+		Calibration cal = imp.getCalibration().copy();
+		imp.setStack(stack instanceof MaskedStack ? ((MaskedStack) stack).crop(crop)
+				: stack.crop(crop.x, crop.y, 0, crop.width, crop.height, stack.getSize()));
+		imp.setDisplayRange(min, max);
+		cal.xOrigin -= crop.x;
+		cal.yOrigin -= crop.y;
+		imp.setCalibration(cal);
+
+		String info = (String) imp.getProperty("Info");
+		StringBuilder sb = new StringBuilder(info == null ? "" : info.endsWith("\n") ? info : info + "\n");
+		sb.append(CROP_X).append(" = ").append(crop.x).append('\n');
+		sb.append(CROP_Y).append(" = ").append(crop.y).append('\n');
+		sb.append(CANVAS_WIDTH).append(" = ").append(mask.width).append('\n');
+		sb.append(CANVAS_HEIGHT).append(" = ").append(mask.height).append('\n');
+		imp.setProperty("Info", sb.toString());
+	}
+
+	static final String CROP_X = "AreaSelector.cropX", CROP_Y = "AreaSelector.cropY",
+			CANVAS_WIDTH = "AreaSelector.canvasWidth", CANVAS_HEIGHT = "AreaSelector.canvasHeight";
+
+	/**
+	 * Window-free "Merge Channels..." (create composite, keep sources): two-channel
+	 * hyperstack with c1 red and c2 green. If both channels have the same bit
+	 * depth, the slices share the pixel arrays of the sources instead of copying
+	 * them.
+	 */
+	static ImagePlus mergeChannels(ImagePlus c1, ImagePlus c2) {
+		ImageStack s1 = c1.getStack(), s2 = c2.getStack();
+		boolean convert = c1.getBitDepth() != c2.getBitDepth();
+		ImageStack stack = new ImageStack(c1.getWidth(), c1.getHeight());
+		for (int s = 1; s <= s1.getSize(); s++) {
+			stack.addSlice(s1.getSliceLabel(s), convert ? s1.getProcessor(s).convertToFloat() : s1.getProcessor(s));
+			stack.addSlice(s2.getSliceLabel(s), convert ? s2.getProcessor(s).convertToFloat() : s2.getProcessor(s));
+		}
+		ImagePlus imp = new ImagePlus("Merged", stack);
+		imp.setDimensions(2, s1.getSize(), 1);
+		imp.setCalibration(c1.getCalibration());
+		CompositeImage merged = new CompositeImage(imp, CompositeImage.COMPOSITE);
+		merged.resetDisplayRanges();
+		return merged;
+	}
+
+	/**
+	 * Stacks two single plane projections to a composite image (c1 red, c2 green),
+	 * like "Merge Channels..." followed by "Z Project..." on the merged
+	 * hyperstack - but without merging or cloning the stacks. Planes of
+	 * different bit depth are converted to 32-bit, as a stack requires a common
+	 * type.
+	 *
+	 * @param template image the calibration is taken from
+	 */
+	static ImagePlus mergeProjections(ImageProcessor p1, ImageProcessor p2, String title, ImagePlus template) {
+		if (p1.getBitDepth() != p2.getBitDepth()) {
+			p1 = p1.convertToFloat();
+			p2 = p2.convertToFloat();
+		}
+		ImageStack stack = new ImageStack(p1.getWidth(), p1.getHeight());
+		stack.addSlice("c1", p1);
+		stack.addSlice("c2", p2);
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setDimensions(2, 1, 1);
+		imp.setCalibration(template.getCalibration());
+		CompositeImage merged = new CompositeImage(imp, CompositeImage.COMPOSITE);
+		merged.resetDisplayRanges();
+		return merged;
+	}
+
+	/**
+	 * Saves the image as tiff (stack) without requiring a window.
+	 *
+	 * @return true if the file was written
+	 */
+	static boolean save(ImagePlus imp, String path) {
+		FileSaver fs = new FileSaver(imp);
+		if (imp.getStackSize() > 1) {
+			return fs.saveAsTiffStack(path);
+		}
+		return fs.saveAsTiff(path);
+	}
+
+	/**
+	 * Saves the image as compressed tiff (stack), see {@link CompressedTiffWriter}.
+	 * RGB images and {@link CompressedTiffWriter#NONE} are saved uncompressed.
+	 *
+	 * @throws IOException with the cause if the file could not be written
+	 */
+	static void save(ImagePlus imp, String path, int compression) throws IOException {
+		if (compression == CompressedTiffWriter.NONE || imp.getBitDepth() == 24) {
+			if (!save(imp, path)) {
+				throw new IOException("saving " + path + " failed"); // FileSaver reported the cause
+			}
+			return;
+		}
+		new CompressedTiffWriter(compression).save(imp, path);
+	}
+
+	private static void copyRois(File source, File target) throws IOException {
+		if (source.getCanonicalFile().equals(target.getCanonicalFile())) {
+			return;
+		}
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Closes the image and releases the file of memory-mapped stacks.
+	 */
+	static void closeImage(ImagePlus imp) {
+		if (imp == null) {
+			return;
+		}
+		if (imp.getStack() instanceof MappedTiffStack) {
+			((MappedTiffStack) imp.getStack()).close();
+		}
+		imp.close();
+	}
+
+	static void notifyError(ProgressDialog pD, String message) {
+		if (pD != null) {
+			pD.notifyMessage(message, ProgressDialog.ERROR);
+		} else {
+			IJ.log(message);
+		}
+	}
+}
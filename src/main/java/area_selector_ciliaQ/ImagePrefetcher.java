@@ -0,0 +1,147 @@
+package area_selector_ciliaQ;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Look-ahead loader for interactive processing: while the user draws the ROIs
+ * of task N, the images of the next tasks (up to the prefetch depth) are
+ * opened and projected on a background thread. A task is only prefetched if
+ * the {@link AdmissionController} admits it; its budget is returned when the
+ * task is processed ({@link Main}) or skipped - for a skipped task only after a
+ * load already running has finished and its images were closed.
+ *
+ * @author Sebastian Rassmann
+ */
+public class ImagePrefetcher {
+
+	private final ProcessSettings pS;
+	private final StageTimer timer;
+	private final AdmissionController admission;
+	private final int depth;
+	private final ExecutorService loader;
+	private final Map<Integer, Prefetch> pending = new HashMap<Integer, Prefetch>();
+
+	/**
+	 * Load of one task; claimed either by the loader thread (started) or by
+	 * {@link ImagePrefetcher#discard(int, Prefetch)} before it ran.
+	 */
+	private static class Prefetch {
+		final CompletableFuture<TaskImages> images = new CompletableFuture<TaskImages>();
+		final AtomicBoolean started = new AtomicBoolean(false);
+	}
+
+	/**
+	 * @param timer     receives the loading times of prefetched tasks, may be null
+	 * @param admission admits tasks to be loaded in advance
+	 */
+	public ImagePrefetcher(ProcessSettings pS, StageTimer timer, AdmissionController admission) {
+		this.pS = pS;
+		this.timer = timer;
+		this.admission = admission;
+		// Bio-Formats import relies on image windows and can't run in the background
+		this.depth = pS.selectedBioFormat.equals(ProcessSettings.bioFormats[0]) ? Math.max(0, pS.prefetchDepth) : 0;
+		this.loader = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "AreaSelector prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Hands over the images of a task and starts loading the following tasks.
+	 *
+	 * @return future of the prefetched images or null if the task was not
+	 *         prefetched and needs to be loaded by the caller
+	 */
+	public synchronized Future<TaskImages> take(int task) {
+		Prefetch prefetch = pending.remove(task);
+		for (int next = task + 1; next <= task + depth && next < pS.getNOfTasks(); next++) {
+			schedule(next);
+		}
+		return prefetch == null ? null : prefetch.images;
+	}
+
+	/**
+	 * Like {@link #take(int)} for a task that is not processed, images loaded for
+	 * it are released.
+	 */
+	public synchronized void skip(int task) {
+		Prefetch prefetch = pending.remove(task);
+		for (int next = task + 1; next <= task + depth && next < pS.getNOfTasks(); next++) {
+			schedule(next);
+		}
+		if (prefetch != null) {
+			discard(task, prefetch);
+		} else {
+			admission.release(task);
+		}
+	}
+
+	/**
+	 * Releases the budget of the task right away if its load did not start,
+	 * otherwise once the load finished and its images were closed - loading
+	 * does not react to interrupts.
+	 */
+	private void discard(int task, Prefetch prefetch) {
+		if (prefetch.started.compareAndSet(false, true)) {
+			prefetch.images.cancel(false);
+			admission.release(task);
+			return;
+		}
+		prefetch.images.whenComplete((images, error) -> {
+			if (images != null) {
+				images.close();
+			}
+			admission.release(task);
+		});
+	}
+
+	private void schedule(final int task) {
+		if (pending.containsKey(task)) {
+			return;
+		}
+		if (pS.isRemoved(task)) {
+			return;
+		}
+		final String path = pS.getPath(task), name = pS.getName(task), outputDir = pS.getOutputDir(task);
+		if (!Processing.needsUserInput(path, name, pS)) {
+			return; // processed headless without drawing
+		}
+		if (pS.skipUpToDate && TaskManifest.forDir(outputDir).isUpToDate(path, name, outputDir, pS)) {
+			return; // skipped
+		}
+		if (!admission.tryAdmit(task, name, AdmissionController.estimate(path, name, pS, false))) {
+			return; // loaded on demand
+		}
+		final StageTimer.Task timing = StageTimer.task(timer, path, name);
+		final Prefetch prefetch = new Prefetch();
+		pending.put(task, prefetch);
+		loader.execute(() -> {
+			if (!prefetch.started.compareAndSet(false, true)) {
+				return; // discarded before it ran
+			}
+			try {
+				prefetch.images.complete(TaskImages.load(path, name, pS, timing));
+			} catch (Throwable e) {
+				prefetch.images.completeExceptionally(e);
+			}
+		});
+	}
+
+	/**
+	 * Stops loading and releases images that were loaded but never taken.
+	 */
+	public synchronized void shutdown() {
+		for (Map.Entry<Integer, Prefetch> entry : pending.entrySet()) {
+			discard(entry.getKey(), entry.getValue());
+		}
+		pending.clear();
+		loader.shutdown(); // loads not started return immediately
+	}
+}
@@ -1,6 +1,8 @@
 package area_selector_ciliaQ;
 
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 
 import ij.IJ;
 import ij.gui.WaitForUserDialog;
@@ -10,6 +12,8 @@ public class Main implements PlugIn {
 
 	static String pluginName = "Area Selector for CiliaQ";
 	static String pluginVersion = "v0.1.2";
+	/** files of this many tasks are checked concurrently, see {@link PreflightCheck} */
+	static final int PREFLIGHT_THREADS = 8;
 
 	ProgressDialog progressDialog;
 	boolean processingDone = false;
@@ -30,21 +34,161 @@ public class Main implements PlugIn {
 			new WaitForUserDialog("GD canceled - end Plugin!").show();
 			return;
 		}
-		if (pS.resultsToNewFolder) {
+		if (pS.resultsToNewFolder && pS.resultsDir.isEmpty()) { // not chosen during file selection
 			pS.selectOutputDir();
 		}
-		startProgressDialog(pS.toArray(), pS.getNOfTasks());
+		// tasks checked before processing, later ones are checked when they are reached
+		final int checkedTasks = pS.isTaskListOpen() ? 0 : pS.getNOfTasks();
+		if (pS.isTaskListOpen()) { // files are still being selected
+			startProgressDialog(0);
+			progressDialog.setTaskListOpen(true);
+			pS.followTasks(progressDialog::addTasks);	// names are read from pS when shown
+		} else {
+			startProgressDialog(pS.getNOfTasks());
+			progressDialog.updateBarText("checking files...");
+			int excluded = PreflightCheck.apply(PreflightCheck.checkAll(pS, false, PREFLIGHT_THREADS), pS,
+					progressDialog);
+			if (excluded > 0) {
+				progressDialog.notifyMessage(excluded + " task(s) failed the pre-flight check and are skipped",
+						ProgressDialog.NOTIFICATION);
+			}
+		}
+		StageTimer timer = new StageTimer(progressDialog);
+
+		if (pS.parallelProcessing && pS.importRois) {
+			if (pS.isTaskListOpen()) {
+				progressDialog.notifyMessage("Files are still being selected - processing sequentially",
+						ProgressDialog.NOTIFICATION);
+			} else if (pS.allRoisAvailable()) {
+				progressDialog.updateBarText("in progress (parallel)...");
+				try {
+					BatchPipeline.fromSettings(pS).run(pS, progressDialog, timer);
+				} catch (InterruptedException e) {
+					progressDialog.notifyMessage("Parallel processing interrupted", ProgressDialog.ERROR);
+				}
+				TaskManifest.releaseAll();
+				writeTimings(timer);
+				progressDialog.updateBarText("finished!");
+				return;
+			} else {
+				progressDialog.notifyMessage("Not all images have a set of Rois - processing sequentially",
+						ProgressDialog.NOTIFICATION);
+			}
+		}
 
-		for (int task = 0; task < pS.getNOfTasks(); task++) {
+		AdmissionController admission = AdmissionController.forSettings(pS, progressDialog);
+		ImagePrefetcher prefetcher = new ImagePrefetcher(pS, timer, admission);
+		WriteBehindQueue writer = new WriteBehindQueue(progressDialog, 4);
+		int upToDate = 0; // reported once, not per task
+		for (int task = 0; awaitTask(task); task++) {
+			final int taskIndex = task;
+			final String path = pS.getPath(task), name = pS.getName(task), outputDir = pS.getOutputDir(task);
+			if (pS.isRemoved(task)) {
+				progressDialog.notifyMessage(name + ": removed from selection - skipped", ProgressDialog.LOG);
+				prefetcher.skip(task);
+				progressDialog.moveTask(task);
+				continue;
+			}
+			if (pS.skipUpToDate && TaskManifest.forDir(outputDir).isUpToDate(path, name, outputDir, pS)) {
+				upToDate++;
+				pS.setTaskDone(task, true);
+				prefetcher.skip(task);
+				progressDialog.moveTask(task);
+				continue;
+			}
+			if (task >= checkedTasks) { // added while the batch is running
+				if (PreflightCheck.apply(PreflightCheck.check(pS, task, false), pS, progressDialog) > 0) {
+					prefetcher.skip(task);
+					progressDialog.moveTask(task);
+					continue;
+				}
+			}
 			progressDialog.updateBarText("in progress...");
-			Processing.doProcessing(pS.paths.get(task), pS.names.get(task), pS.getOutputDir(task), pS, progressDialog);
+			// the current image has to be loaded anyway, only prefetching waits for the budget
+			admission.forceAdmit(task, name,
+					AdmissionController.estimate(path, name, pS, !Processing.needsUserInput(path, name, pS)));
+			boolean done = Processing.doProcessing(path, name, outputDir, pS, progressDialog, prefetcher.take(task),
+					writer, timer);
+			writer.afterTaskWrites(saved -> {
+				// only recorded once every result of the task was written
+				if (done && saved && pS.skipUpToDate) {
+					recordInManifest(path, name, outputDir);
+				}
+				pS.setTaskDone(taskIndex, done && saved);
+				admission.release(taskIndex);
+			});
 			progressDialog.moveTask(task);
 		}
+		if (upToDate > 0) {
+			progressDialog.notifyMessage(upToDate + " task(s) with results up to date - skipped", ProgressDialog.LOG);
+		}
+		progressDialog.setTaskListOpen(false);
+		prefetcher.shutdown();
+		progressDialog.updateBarText("writing remaining files...");
+		writer.shutdown();
+		TaskManifest.releaseAll();
+		writeTimings(timer);
 		progressDialog.updateBarText("finished!");
 	}
 
-	private void startProgressDialog(String[] tasks, int nOfTasks) {
-		progressDialog = new ProgressDialog(tasks, nOfTasks);
+	/**
+	 * Writes the timing report to the output dir of the first task.
+	 */
+	private void writeTimings(StageTimer timer) {
+		if (pS.getNOfTasks() == 0) {
+			return;
+		}
+		try {
+			File report = timer.writeReport(pS.getOutputDir(0));
+			progressDialog.notifyMessage("Timings written to " + report.getPath(), ProgressDialog.LOG);
+		} catch (IOException e) {
+			progressDialog.notifyMessage("Could not write timings (" + e.getMessage() + ")",
+					ProgressDialog.NOTIFICATION);
+		}
+	}
+
+	/**
+	 * Waits until the task was added if files are still being selected.
+	 * 
+	 * @return false if there are no more tasks
+	 */
+	private boolean awaitTask(int task) {
+		if (task >= pS.getNOfTasks() && pS.isTaskListOpen()) {
+			progressDialog.replaceBarText("waiting for files to be added...");
+		}
+		try {
+			return pS.awaitTask(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return name of the task in the {@link ProgressDialog}, with its state once it is finished
+	 */
+	private static String taskLabel(int task) {
+		switch (pS.getTaskState(task)) {
+		case TaskTable.REMOVED:
+			return pS.getName(task) + " (skipped)";
+		case TaskTable.FAILED:
+			return pS.getName(task) + " (failed)";
+		default:
+			return pS.getName(task);
+		}
+	}
+
+	private void recordInManifest(String path, String name, String outputDir) {
+		try {
+			TaskManifest.forDir(outputDir).record(path, name, outputDir, pS);
+		} catch (IOException e) {
+			progressDialog.notifyMessage(name + ": could not update manifest (" + e.getMessage() + ")",
+					ProgressDialog.NOTIFICATION);
+		}
+	}
+
+	private void startProgressDialog(int nOfTasks) {
+		progressDialog = new ProgressDialog(Main::taskLabel, nOfTasks);
 		progressDialog.setLocation(0, 0);
 		progressDialog.setVisible(true);
 		progressDialog.addWindowListener(new java.awt.event.WindowAdapter() {
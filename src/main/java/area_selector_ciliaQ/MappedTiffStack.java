@@ -0,0 +1,333 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Virtual stack over an uncompressed TIFF file. Slices are decoded on request
+ * from a memory mapped region of the file, so only the slices currently in use
+ * occupy the heap. Supports 8-bit, 16-bit and 32-bit float grayscale images
+ * stored contiguously (as written by ImageJ and most acquisition software).
+ * Single channels of ImageJ hyperstacks can be opened without touching the
+ * planes of the other channels.
+ *
+ * @author Sebastian Rassmann
+ */
+public class MappedTiffStack extends VirtualStack {
+
+	private final File file;
+	private final int width, height, fileType;
+	private final boolean intelByteOrder;
+	private final long[] planeOffsets;
+	private final int[] planes; // plane of the file shown as slice i + 1
+	private FileChannel channel;
+
+	private MappedTiffStack(File file, FileInfo fi, long[] planeOffsets, int[] planes) {
+		super(fi.width, fi.height, null, file.getParent() + File.separator);
+		this.file = file;
+		this.width = fi.width;
+		this.height = fi.height;
+		this.fileType = fi.fileType;
+		this.intelByteOrder = fi.intelByteOrder;
+		this.planeOffsets = planeOffsets;
+		this.planes = planes;
+	}
+
+	/**
+	 * Opens all planes of the file as virtual stack.
+	 *
+	 * @return the image or null if the file can't be memory mapped (compressed,
+	 *         unsupported type or not contiguous) - open it with IJ.openImage then
+	 */
+	public static ImagePlus open(String path) {
+		return open(path, null);
+	}
+
+	/**
+	 * Opens a subset of the planes of the file as virtual stack.
+	 *
+	 * @param planes 0-based plane indices in file order, null for all planes
+	 * @return the image or null if the file can't be memory mapped
+	 */
+	public static ImagePlus open(String path, int[] planes) {
+		File file = new File(path);
+		FileInfo[] info;
+		try {
+			info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		} catch (IOException e) {
+			return null;
+		}
+		long[] offsets = planeOffsets(info);
+		if (offsets == null) {
+			return null;
+		}
+		if (planes == null) {
+			planes = new int[offsets.length];
+			for (int i = 0; i < planes.length; i++) planes[i] = i;
+		}
+		for (int plane : planes) {
+			if (plane < 0 || plane >= offsets.length) return null;
+		}
+		return open(file, info, offsets, planes);
+	}
+
+	/**
+	 * Opens the planes of one channel of a multi-channel tif (ImageJ hyperstack,
+	 * channels interleaved) as virtual stack.
+	 *
+	 * @param channel 1-based channel
+	 * @return the image or null if the file can't be memory mapped or has no such
+	 *         channel
+	 */
+	public static ImagePlus openChannel(String path, int channel) {
+		File file = new File(path);
+		FileInfo[] info;
+		try {
+			info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		} catch (IOException e) {
+			return null;
+		}
+		long[] offsets = planeOffsets(info);
+		if (offsets == null) {
+			return null;
+		}
+		String description = info[0].description;
+		int channels = descriptionValue(description, "channels", 1);
+		if (channel < 1 || channel > channels || offsets.length % channels != 0) {
+			return null;
+		}
+		int[] planes = new int[offsets.length / channels];
+		for (int i = 0; i < planes.length; i++) {
+			planes[i] = i * channels + channel - 1;
+		}
+		ImagePlus imp = open(file, info, offsets, planes);
+		int slices = descriptionValue(description, "slices", 1), frames = descriptionValue(description, "frames", 1);
+		if (slices * frames == planes.length) {
+			imp.setDimensions(1, slices, frames);
+		}
+		return imp;
+	}
+
+	/**
+	 * Reads one channel of a multi-channel tif to memory, plane by plane - the
+	 * planes of the other channels are not read.
+	 *
+	 * @param channel 1-based channel
+	 * @return the image or null if the file can't be memory mapped or has no such
+	 *         channel
+	 */
+	public static ImagePlus readChannel(String path, int channel) {
+		ImagePlus mapped = openChannel(path, channel);
+		if (mapped == null) {
+			return null;
+		}
+		MappedTiffStack source = (MappedTiffStack) mapped.getStack();
+		ImageStack stack = new ImageStack(source.getWidth(), source.getHeight());
+		try {
+			for (int s = 1; s <= source.getSize(); s++) {
+				stack.addSlice(null, source.getProcessor(s));
+			}
+		} finally {
+			source.close();
+		}
+		ImagePlus imp = new ImagePlus(mapped.getTitle(), stack);
+		imp.setDimensions(1, mapped.getNSlices(), mapped.getNFrames());
+		imp.setCalibration(mapped.getCalibration());
+		return imp;
+	}
+
+	private static ImagePlus open(File file, FileInfo[] info, long[] offsets, int[] planes) {
+		FileInfo fi = info[0];
+		ImagePlus imp = new ImagePlus(file.getName(), new MappedTiffStack(file, fi, offsets, planes));
+		Calibration cal = imp.getCalibration();
+		if (fi.pixelWidth > 0 && fi.unit != null) {
+			cal.pixelWidth = fi.pixelWidth;
+			cal.pixelHeight = fi.pixelHeight;
+			cal.pixelDepth = fi.pixelDepth;
+			cal.setUnit(fi.unit);
+		}
+		return imp;
+	}
+
+	/**
+	 * @return the integer value of a "key=value" line of an ImageJ tiff
+	 *         description or the default if there is none
+	 */
+	static int descriptionValue(String description, String key, int defaultValue) {
+		if (description == null) {
+			return defaultValue;
+		}
+		for (String line : description.split("\n")) {
+			if (line.startsWith(key + "=")) {
+				try {
+					return Integer.parseInt(line.substring(key.length() + 1).trim());
+				} catch (NumberFormatException e) {
+					return defaultValue;
+				}
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * File offsets of all planes or null if they can't be mapped.
+	 */
+	static long[] planeOffsets(FileInfo[] info) {
+		if (info == null || info.length == 0) {
+			return null;
+		}
+		for (FileInfo fi : info) {
+			if (fi.compression > FileInfo.COMPRESSION_NONE || !isSupported(fi.fileType) || !isContiguous(fi)
+					|| fi.width != info[0].width || fi.height != info[0].height || fi.fileType != info[0].fileType) {
+				return null;
+			}
+		}
+		FileInfo fi = info[0];
+		long planeBytes = (long) fi.width * fi.height * fi.getBytesPerPixel();
+		long[] offsets;
+		if (info.length == 1 && fi.nImages > 1) { // ImageJ stack: one IFD, planes separated by gap
+			offsets = new long[fi.nImages];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = fi.getOffset() + i * (planeBytes + fi.gapBetweenImages);
+			}
+		} else {
+			offsets = new long[info.length];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = info[i].getOffset();
+			}
+		}
+		return offsets;
+	}
+
+	private static boolean isSupported(int fileType) {
+		return fileType == FileInfo.GRAY8 || fileType == FileInfo.GRAY16_UNSIGNED
+				|| fileType == FileInfo.GRAY16_SIGNED || fileType == FileInfo.GRAY32_FLOAT;
+	}
+
+	private static boolean isContiguous(FileInfo fi) {
+		if (fi.stripOffsets == null || fi.stripOffsets.length < 2) {
+			return true;
+		}
+		for (int i = 1; i < fi.stripOffsets.length; i++) {
+			if (fi.stripOffsets[i] != fi.stripOffsets[i - 1] + fi.stripLengths[i - 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		try {
+			return readPlane(planes[n - 1]);
+		} catch (IOException e) {
+			throw new RuntimeException("reading slice " + n + " of " + file.getName() + " failed", e);
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		Object pixels = getPixels(n);
+		if (pixels instanceof byte[]) {
+			return new ByteProcessor(width, height, (byte[]) pixels, null);
+		} else if (pixels instanceof short[]) {
+			return new ShortProcessor(width, height, (short[]) pixels, null);
+		}
+		return new FloatProcessor(width, height, (float[]) pixels);
+	}
+
+	private synchronized FileChannel channel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = new RandomAccessFile(file, "r").getChannel();
+		}
+		return channel;
+	}
+
+	private Object readPlane(int plane) throws IOException {
+		int n = width * height;
+		MappedByteBuffer buffer = channel().map(FileChannel.MapMode.READ_ONLY, planeOffsets[plane],
+				(long) n * bytesPerPixel());
+		buffer.order(intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		switch (fileType) {
+		case FileInfo.GRAY8:
+			byte[] bytes = new byte[n];
+			buffer.get(bytes);
+			return bytes;
+		case FileInfo.GRAY16_UNSIGNED:
+		case FileInfo.GRAY16_SIGNED:
+			short[] shorts = new short[n];
+			buffer.asShortBuffer().get(shorts);
+			if (fileType == FileInfo.GRAY16_SIGNED) { // ImageJ shifts signed data into the unsigned range
+				for (int i = 0; i < n; i++) shorts[i] = (short) (shorts[i] + 32768);
+			}
+			return shorts;
+		default:
+			float[] floats = new float[n];
+			buffer.asFloatBuffer().get(floats);
+			return floats;
+		}
+	}
+
+	private int bytesPerPixel() {
+		return fileType == FileInfo.GRAY8 ? 1 : fileType == FileInfo.GRAY32_FLOAT ? 4 : 2;
+	}
+
+	/**
+	 * Releases the file handle, slices can still be read afterwards (the file is
+	 * reopened).
+	 */
+	public synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to release
+			}
+			channel = null;
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return planes.length;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitDepth() {
+		return fileType == FileInfo.GRAY8 ? 8 : fileType == FileInfo.GRAY32_FLOAT ? 32 : 16;
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	@Override
+	public void setPixels(Object pixels, int n) {
+		// read only
+	}
+}
@@ -0,0 +1,108 @@
+package area_selector_ciliaQ;
+
+import java.awt.Rectangle;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Virtual stack that clears every slice of a source stack outside of a
+ * {@link SpanMask} when it is requested. Saving an image with this stack
+ * through FileSaver makes ImageJ's TIFF encoder read, clear and append one
+ * slice at a time, so memory use stays constant regardless of stack depth,
+ * while the file is written by the same encoder as IJ.save.
+ *
+ * @author Sebastian Rassmann
+ */
+public class MaskedStack extends VirtualStack {
+
+	private final ImageStack source, pixelSource;
+	private final SpanMask mask;
+	private final int bitDepth;
+	private Rectangle crop; // region returned of every slice, null = whole slice
+
+	/**
+	 * @param source      stack providing slice labels (and pixels if pixelSource is
+	 *                    null), typically a virtual stack
+	 * @param pixelSource optional faster stack with the same pixels, e.g. a
+	 *                    {@link MappedTiffStack}
+	 */
+	MaskedStack(ImageStack source, ImageStack pixelSource, SpanMask mask, int bitDepth) {
+		super(source.getWidth(), source.getHeight(), null, null);
+		this.source = source;
+		this.pixelSource = pixelSource != null ? pixelSource : source;
+		this.mask = mask;
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Replaces the stack of the image by a masked view, keeping the display range
+	 * (it is written to the tiff header).
+	 */
+	static void apply(ImagePlus imp, SpanMask mask, ImageStack pixelSource) {
+		double min = imp.getDisplayRangeMin(), max = imp.getDisplayRangeMax();
+		imp.setStack(new MaskedStack(imp.getStack(), pixelSource, mask, imp.getBitDepth()));
+		imp.setDisplayRange(min, max);
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		ImageProcessor ip = pixelSource.getProcessor(n);
+		if (pixelSource.isVirtual()) {
+			mask.clearOutside(ip); // fresh copy of the slice
+		} else {
+			ip = ip.duplicate();
+			mask.clearOutside(ip);
+		}
+		if (crop != null) {
+			ip.setRoi(crop);
+			ip = ip.crop();
+		}
+		return ip;
+	}
+
+	/**
+	 * @return view of the region of every slice, cleared when it is read
+	 */
+	MaskedStack crop(Rectangle region) {
+		MaskedStack cropped = new MaskedStack(source, pixelSource, mask, bitDepth);
+		cropped.crop = region;
+		return cropped;
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public void setPixels(Object pixels, int n) {
+		// read only
+	}
+
+	@Override
+	public int getSize() {
+		return source.getSize();
+	}
+
+	@Override
+	public int getWidth() {
+		return crop != null ? crop.width : source.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return crop != null ? crop.height : source.getHeight();
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return source.getSliceLabel(n);
+	}
+}
@@ -0,0 +1,83 @@
+package area_selector_ciliaQ;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Virtual two-channel hyperstack over the stacks of two channels, interleaved
+ * like "Merge Channels..." (c1 red, c2 green). Slices are taken from the
+ * channel stacks when they are shown, so a virtual helper channel is only read
+ * for the slices looked at. Slices of different bit depth are converted to
+ * 32-bit, as a stack requires a common type.
+ *
+ * @author Sebastian Rassmann
+ */
+public class MergedStack extends VirtualStack {
+
+	private final ImageStack s1, s2;
+	private final boolean convert;
+
+	private MergedStack(ImageStack s1, ImageStack s2, boolean convert) {
+		super(s1.getWidth(), s1.getHeight(), null, null);
+		this.s1 = s1;
+		this.s2 = s2;
+		this.convert = convert;
+	}
+
+	/**
+	 * Same view as {@link HeadlessProcessing#mergeChannels(ImagePlus, ImagePlus)},
+	 * without reading the slices of c2 in advance.
+	 */
+	static ImagePlus merge(ImagePlus c1, ImagePlus c2) {
+		ImagePlus imp = new ImagePlus("Merged",
+				new MergedStack(c1.getStack(), c2.getStack(), c1.getBitDepth() != c2.getBitDepth()));
+		imp.setDimensions(2, c1.getStackSize(), 1);
+		imp.setCalibration(c1.getCalibration());
+		CompositeImage merged = new CompositeImage(imp, CompositeImage.COMPOSITE);
+		merged.resetDisplayRanges();
+		return merged;
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		ImageProcessor ip = (n % 2 == 1 ? s1 : s2).getProcessor((n + 1) / 2);
+		return convert ? ip.convertToFloat() : ip;
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public void setPixels(Object pixels, int n) {
+		// read only
+	}
+
+	@Override
+	public int getSize() {
+		return 2 * s1.getSize();
+	}
+
+	@Override
+	public int getWidth() {
+		return s1.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return s1.getHeight();
+	}
+
+	public int getBitDepth() {
+		return convert ? 32 : s1.getBitDepth();
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return (n % 2 == 1 ? s1 : s2).getSliceLabel((n + 1) / 2);
+	}
+}
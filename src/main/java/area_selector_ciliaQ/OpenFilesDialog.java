@@ -7,7 +7,6 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
-import java.util.Stack;
 
 import javax.swing.BoxLayout;
 import javax.swing.DefaultComboBoxModel;
@@ -36,6 +35,7 @@ import ij.gui.GenericDialog;
 
 public class OpenFilesDialog extends javax.swing.JFrame implements ActionListener {
 	LinkedList<File> filesToOpen = new LinkedList<File>();
+	LinkedList<Integer> taskIndices = new LinkedList<Integer>();	// task of each file in pS, files are handed over when added
 	boolean done = false, dirsaved = false;
 	File saved;// = new File(getClass().getResource(".").getFile());
 	JMenuBar jMenuBar1;
@@ -54,7 +54,9 @@ public class OpenFilesDialog extends javax.swing.JFrame implements ActionListene
 	}
 	
 	/**
-	 * init OpenFilesDialog with instance of ProcessSettings to allow communicate between these classes
+	 * init OpenFilesDialog with instance of ProcessSettings to allow communicate between these classes.
+	 * Added files are appended to the task list of pS right away, so processing can start while
+	 * further files are selected.
 	 * @param pS
 	 */
 	public OpenFilesDialog(ProcessSettings pS) {
@@ -153,7 +155,7 @@ public class OpenFilesDialog extends javax.swing.JFrame implements ActionListene
 			File[] files = chooser.getSelectedFiles();
 			for (int i = 0; i < files.length; i++) {
 //					IJ.log("" + files[i].getPath());
-				filesToOpen.add(files[i]);
+				addFile(files[i]);
 				saved = files[i];
 				dirsaved = true;
 			}
@@ -168,11 +170,18 @@ public class OpenFilesDialog extends javax.swing.JFrame implements ActionListene
 			for (int i = indices.length - 1; i >= 0; i--) {
 //					IJ.log("remove " + indices[i]);
 				filesToOpen.remove(indices[i]);
+				int task = taskIndices.remove(indices[i]);
+				if (pS != null) {
+					pS.removeTask(task);	// skipped unless already started
+				}
 			}
 			updateDisplay();
 		}
 		if (eventQuelle == goButton) {
 			done = true;
+			if (pS != null) {
+				pS.closeTaskList();
+			}
 			dispose();
 		}
 
@@ -184,7 +193,7 @@ public class OpenFilesDialog extends javax.swing.JFrame implements ActionListene
 		if(pS != null) {
 			posFilePattern = pS.mainPattern;
 			negFilePattern = pS.negFilePattern;
-			negDirPattern  = pS.negFilePattern;
+			negDirPattern  = pS.negDirPattern;
 		}
 
 		JFileChooser fc = new JFileChooser();
@@ -196,11 +205,6 @@ public class OpenFilesDialog extends javax.swing.JFrame implements ActionListene
 			return;
 		}
 
-		Stack<File> q = new Stack<File>();
-		for (File f : fc.getSelectedFiles()) {
-			q.push(f);
-		}
-
 		boolean posFileInputAsRegex = false, negFileInputAsRegex = false, negDirInputAsRegex = false;
 		GenericDialog gd = new GenericDialog("Insert pattern matching parameters:");
 
@@ -238,28 +242,29 @@ public class OpenFilesDialog extends javax.swing.JFrame implements ActionListene
 			negDirPattern = transformStringToRegex(negDirPattern);
 		}
 
-		File[] fid; // Files in Dir
-		while (!q.isEmpty()) {
-			fid = q.pop().listFiles();
-			for (File f : fid) { // loop through files in dir
-				if (f.isDirectory() && !f.getName().matches(negDirPattern)) {
-					q.push(f); // add to queue if f is a dir and negDirPattern can't be matched
-				} else if (f.getName().matches(posFilePattern) && !f.getName().matches(negFilePattern)) {
-					// add to file list if posPattern matches and negative Pattern doesn't
-					filesToOpen.add(f);
-				}
-			}
+		for (File f : new FileCrawler(posFilePattern, negFilePattern, negDirPattern).crawl(fc.getSelectedFiles())) {
+			addFile(f);
 		}
 		
 		if(pS != null) {
 			pS.posFilePattern = posFilePattern;
 			pS.negFilePattern = negFilePattern;
-			pS.negDirPattern  = negFilePattern;
+			pS.negDirPattern  = negDirPattern;
 		}
 		
 		return;
 	}
 
+	private void addFile(File f) {
+		filesToOpen.add(f);
+		if (pS != null) {
+			taskIndices.add(pS.getNOfTasks());
+			pS.addTask(f.getParent() + System.getProperty("file.separator"), f.getName());
+		} else {
+			taskIndices.add(-1);
+		}
+	}
+
 	private void patternMatchingGD() throws IOException {
 
 	}
@@ -0,0 +1,241 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Validates the tasks before any pixel data is loaded: resolves helper channel,
+ * set of Rois, further channels and output paths of every task and checks
+ * that the inputs exist and are readable, that the tif headers of the channels
+ * match (width, height, slices) and that outputs neither overwrite inputs nor
+ * each other. Tasks are checked in parallel, as on network storage the checks
+ * are dominated by file system latency.
+ *
+ * @author Sebastian Rassmann
+ */
+public class PreflightCheck {
+
+	/**
+	 * Problem of one task - fatal problems exclude the task from processing.
+	 */
+	static class Problem {
+		final int task;
+		final String name, message;
+		final boolean fatal;
+
+		Problem(int task, String name, String message, boolean fatal) {
+			this.task = task;
+			this.name = name;
+			this.message = message;
+			this.fatal = fatal;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + message;
+		}
+	}
+
+	/**
+	 * Checks all tasks of pS in parallel.
+	 *
+	 * @param roisRequired true if tasks can't be processed without an existing
+	 *                     set of Rois (no user interaction)
+	 * @param threads      number of tasks checked concurrently
+	 * @return problems in task order
+	 */
+	static List<Problem> checkAll(ProcessSettings pS, boolean roisRequired, int threads) {
+		int n = pS.getNOfTasks();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<CompletableFuture<List<Problem>>> futures = new ArrayList<CompletableFuture<List<Problem>>>();
+		for (int task = 0; task < n; task++) {
+			final int t = task;
+			futures.add(CompletableFuture.supplyAsync(() -> check(pS, t, roisRequired), pool));
+		}
+		List<Problem> problems = new ArrayList<Problem>();
+		for (CompletableFuture<List<Problem>> future : futures) {
+			problems.addAll(future.join());
+		}
+		pool.shutdown();
+
+		// outputs of different tasks must not collide, e.g. equal names in a shared output dir
+		Map<String, Integer> outputs = new HashMap<String, Integer>();
+		for (int task = 0; task < n; task++) {
+			if (pS.isRemoved(task)) {
+				continue;
+			}
+			String name = pS.getName(task);
+			for (String output : outputPaths(pS, task)) {
+				Integer other = outputs.putIfAbsent(new File(output).getAbsolutePath(), task);
+				if (other != null && other == task) {
+					problems.add(new Problem(task, name, "writes " + output + " twice - check the patterns", true));
+					break;
+				} else if (other != null) {
+					problems.add(new Problem(task, name, "writes " + output + " as well as " + pS.getName(other)
+							+ " in " + pS.getPath(other), true));
+					break;
+				}
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Checks one task, e.g. a task added while the batch is running.
+	 *
+	 * @return problems of the task, empty if it can be processed
+	 */
+	static List<Problem> check(ProcessSettings pS, int task, boolean roisRequired) {
+		List<Problem> problems = new ArrayList<Problem>();
+		if (pS.isRemoved(task)) {
+			return problems;
+		}
+		String path = pS.getPath(task), name = pS.getName(task), outputDir = pS.getOutputDir(task);
+		String mainPath = path + name, helperPath = path + pS.helperName(name);
+
+		if (!readable(mainPath, "main channel", task, name, problems)) {
+			return problems;
+		}
+		if (!pS.multiChannel && helperPath.equals(mainPath)) {
+			problems.add(new Problem(task, name, "main channel pattern \"" + pS.mainPattern
+					+ "\" not found in the file name - check the patterns", true));
+			return problems;
+		}
+		boolean helperReadable = readable(helperPath, "helper channel", task, name, problems);
+
+		File rois = new File(pS.roisPath(path, name));
+		if (!rois.exists()) {
+			if (roisRequired) {
+				problems.add(new Problem(task, name, "set of Rois " + rois.getName() + " not found", true));
+			} else if (pS.importRois) {
+				problems.add(new Problem(task, name, "no set of Rois yet, it will be drawn", false));
+			}
+		} else if (!rois.canRead()) {
+			problems.add(new Problem(task, name, "set of Rois " + rois.getName() + " is not readable", true));
+		}
+
+		String[] targets = pS.additionalTargets(name);
+		int[] channels = pS.additionalChannelsToRead();
+		if (targets.length < pS.additionalPatterns().size()) {
+			problems.add(new Problem(task, name, "main channel pattern \"" + pS.mainPattern
+					+ "\" not found in the file name - further channels can't be named", true));
+		}
+		boolean[] targetReadable = new boolean[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			targetReadable[i] = readable(path + targets[i], "channel " + targets[i], task, name, problems);
+		}
+
+		File dir = new File(outputDir);
+		if (!dir.isDirectory() || !dir.canWrite()) {
+			problems.add(new Problem(task, name, "output dir " + outputDir + " is not writable", true));
+		}
+		for (String output : outputPaths(pS, task)) {
+			String absolute = new File(output).getAbsolutePath();
+			if (absolute.equals(new File(mainPath).getAbsolutePath())
+					|| absolute.equals(new File(helperPath).getAbsolutePath())) {
+				problems.add(new Problem(task, name, "output " + output + " would overwrite an input", true));
+			}
+		}
+
+		if (!pS.selectedBioFormat.equals(ProcessSettings.bioFormats[0]) || !helperReadable) {
+			return problems; // no tif headers to compare
+		}
+		long[] main = tiffHeader(mainPath, pS.mainChannelToRead(), "main channel", task, name, problems);
+		long[] helper = tiffHeader(helperPath, pS.helperChannelToRead(), "helper channel", task, name, problems);
+		if (main != null && helper != null && (main[0] != helper[0] || main[1] != helper[1] || main[2] != helper[2])) {
+			problems.add(new Problem(task, name, "main channel (" + dimensions(main) + ") and helper channel ("
+					+ dimensions(helper) + ") differ in size", true));
+		}
+		for (int i = 0; i < targets.length && main != null; i++) {
+			long[] target = targetReadable[i]
+					? tiffHeader(path + targets[i], channels[i], "channel " + targets[i], task, name, problems)
+					: null;
+			if (target != null && (target[0] != main[0] || target[1] != main[1])) {
+				problems.add(new Problem(task, name, "channel " + targets[i] + " (" + dimensions(target)
+						+ ") differs in size from the main channel (" + dimensions(main) + ")", true));
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Reports the problems and removes tasks with fatal problems from pS.
+	 *
+	 * @return number of removed tasks
+	 */
+	static int apply(List<Problem> problems, ProcessSettings pS, ProgressDialog pD) {
+		int removed = 0;
+		for (Problem problem : problems) {
+			if (problem.fatal && !pS.isRemoved(problem.task)) {
+				pS.removeTask(problem.task);
+				removed++;
+			}
+			String message = problem + (problem.fatal ? " - skipped" : "");
+			if (pD != null) {
+				pD.notifyMessage(message, problem.fatal ? ProgressDialog.ERROR : ProgressDialog.NOTIFICATION);
+			} else {
+				HeadlessProcessing.notifyError(null, message);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Edited stacks and z-projection of the task.
+	 */
+	private static List<String> outputPaths(ProcessSettings pS, int task) {
+		String name = pS.getName(task), outputDir = pS.getOutputDir(task);
+		List<String> outputs = new ArrayList<String>();
+		outputs.add(pS.editedPath(outputDir, name));
+		String[] targets = pS.additionalTargets(name);
+		int[] channels = pS.additionalChannelsToRead();
+		for (int i = 0; i < targets.length; i++) {
+			outputs.add(pS.editedPath(outputDir, targets[i], channels[i]));
+		}
+		outputs.add(pS.zProjectionPath(outputDir, name));
+		return outputs;
+	}
+
+	private static boolean readable(String path, String what, int task, String name, List<Problem> problems) {
+		File file = new File(path);
+		if (!file.isFile()) {
+			problems.add(new Problem(task, name, what + " " + file.getName() + " not found", true));
+			return false;
+		}
+		if (!file.canRead()) {
+			problems.add(new Problem(task, name, what + " " + file.getName() + " is not readable", true));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param channel channel read from the file, 0 for the whole file
+	 * @return header reduced to the channel or null if the file is no readable tif
+	 *         or lacks the channel
+	 */
+	private static long[] tiffHeader(String path, int channel, String what, int task, String name,
+			List<Problem> problems) {
+		long[] header = AdmissionController.tiffHeader(path);
+		if (header == null) {
+			problems.add(new Problem(task, name, what + " " + new File(path).getName() + " is no readable tif", true));
+			return null;
+		}
+		if (channel > header[4]) {
+			problems.add(new Problem(task, name,
+					what + " " + new File(path).getName() + " has no channel " + channel + " (" + header[4] + ")", true));
+			return null;
+		}
+		return AdmissionController.channel(header, channel);
+	}
+
+	private static String dimensions(long[] header) {
+		return header[0] + " x " + header[1] + " x " + header[2];
+	}
+}
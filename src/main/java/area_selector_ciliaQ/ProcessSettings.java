@@ -7,7 +7,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 import javax.swing.JFileChooser;
 import javax.swing.UIManager;
@@ -18,6 +19,7 @@ import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.WaitForUserDialog;
 import ij.io.FileInfo;
+import ij.plugin.ChannelSplitter;
 
 /**
  * Stores data about basic processing settings such as type of input (e.g. # of
@@ -37,11 +39,14 @@ public class ProcessSettings {
 	String selectedTaskVariant = TASKVARIANTS[2];
 
 	static final String[] bioFormats = { ".tif", "raw microscopy file (e.g. OIB-file)" }; 
-	String selectedBioFormat = bioFormats[0]; // set to .tif as channel need to be previously split
+	String selectedBioFormat = bioFormats[0]; // set to .tif as channels need to be previously split or read from a multi-channel tif
 
 	String mainPattern = "_C2_canny3d.tif"; 		// Image with channel to be edited
 	String helperPattern = "_C4.tif";		// Image with channel used to set ROIs	
 	String suffixEdited = "_ed";			// suffix to save edited channel
+	String additionalMainPatterns = "";	// further channels edited with the Rois of the main channel, comma-separated
+	boolean multiChannel = false;	// main and helper channel are channels of one tif (ImageJ hyperstack), patterns match that file
+	int mainChannel = 1, helperChannel = 2;	// 1-based channels read from multi-channel tifs
 	
 	
 	String posFilePattern = "_C1.tif"; // pattern to be matched in Filename
@@ -49,16 +54,30 @@ public class ProcessSettings {
 	String negDirPattern = "";	// pattern to exclude files by parent dir
 
 	boolean importRois = false;
+	boolean parallelProcessing = false;	// staged pipeline, only if all sets of Rois exist
+	int ioThreads = 2;
+	int cpuThreads = Runtime.getRuntime().availableProcessors();
+	int prefetchDepth = 1;		// images loaded in advance while the user draws Rois
+	double heapFraction = 0.75;	// share of the max heap that images of concurrent tasks may use (estimated from tif headers)
+	boolean memoryMapped = false;	// read uncompressed tifs that are only projected as memory-mapped virtual stacks
+	boolean streamingOutput = false;	// clear and write edited stacks slice by slice, only with existing sets of Rois
+	static final String[] COMPRESSIONS = { "none", "deflate", "LZW", "PackBits" };	// index as in CompressedTiffWriter
+	String outputCompression = COMPRESSIONS[0];	// compression of edited stacks
+	boolean cropToRois = false;	// crop edited stacks to the bounding box of the Rois (offset stored in the tif)
+	int cropMargin = 10;	// pixels kept around the Rois when cropping
+	int projectionCacheMB = 0;	// disk budget of the cache of helper channel projections, 0 = off
+	boolean skipUpToDate = false;	// skip tasks recorded in the manifest of the output dir with unchanged inputs
 	
 	boolean resultsToNewFolder = false;
 	String resultsDir = ""; // Specifies dir where output files will be saved if they are to be saved no new
 							// folder
 
 
-	// --------------------- Task data
+	// --------------------- Task data, guarded by this (tasks may be added while processing)
 
-	ArrayList<String> names = new ArrayList<String>();		// files names with ending (e.g. .tif)
-	ArrayList<String> paths = new ArrayList<String>();		// paths to parent dir with last file sep ("/")
+	private TaskTable tasks = new TaskTable();		// parent dir (with last file sep) and file name of every task
+	private boolean taskListOpen = false;	// more tasks may be added (manual file selection still open)
+	private IntConsumer taskListener = null;	// notified of the number of added tasks
 
 	private ProcessSettings() {
 		super();
@@ -76,6 +95,14 @@ public class ProcessSettings {
 		return inst;
 	}
 
+	/**
+	 * Default settings without tasks and without any dialog, e.g. to be set from
+	 * the command line (see {@link BatchCommandLine}).
+	 */
+	static ProcessSettings initWithoutTasks() {
+		return new ProcessSettings();
+	}
+
 	/**
 	 * Constructs new Object and triggers a GD for the user
 	 * 
@@ -100,8 +127,24 @@ public class ProcessSettings {
 		gd.addStringField("Enter pattern of file containing the channel for editing", inst.mainPattern, 16);
 		gd.addStringField("Enter pattern of file containing channel to define ROIs", inst.helperPattern, 16);
 		gd.addStringField("Enter suffix for edited file", inst.suffixEdited, 16);
+		gd.addStringField("Patterns of further channels to edit (comma-separated, optional)",
+				inst.additionalMainPatterns, 16);
+		gd.addCheckbox("Read channels from multi-channel tifs (no split files, further channels as numbers)",
+				inst.multiChannel);
+		gd.addNumericField("Channel for editing (multi-channel tifs)", inst.mainChannel, 0);
+		gd.addNumericField("Channel to define ROIs (multi-channel tifs)", inst.helperChannel, 0);
 		gd.addCheckbox("Use existing sets of Rois", inst.importRois);
+		gd.addCheckbox("Unattended parallel processing (requires existing sets of Rois)", inst.parallelProcessing);
 		gd.addCheckbox("Output to new Folder", inst.resultsToNewFolder);
+		gd.addCheckbox("Skip images with up-to-date results (resume)", inst.skipUpToDate);
+		gd.addNumericField("Images to load in advance (0 = off)", inst.prefetchDepth, 0);
+		gd.addNumericField("Max. fraction of heap for images of concurrent tasks", inst.heapFraction, 2);
+		gd.addCheckbox("Read uncompressed tifs memory-mapped (saves memory)", inst.memoryMapped);
+		gd.addNumericField("Projection cache size (MB, 0 = off)", inst.projectionCacheMB, 0);
+		gd.addCheckbox("Stream edited stacks slice by slice (constant memory, existing sets of Rois)", inst.streamingOutput);
+		gd.addChoice("Compression of edited stacks", COMPRESSIONS, inst.outputCompression);
+		gd.addCheckbox("Crop edited stacks to the Rois", inst.cropToRois);
+		gd.addNumericField("Margin around the Rois when cropping (px)", inst.cropMargin, 0);
 
 		// show Dialog-----------------------------------------------------------------
 		gd.showDialog();
@@ -111,8 +154,22 @@ public class ProcessSettings {
 		inst.mainPattern = gd.getNextString();
 		inst.helperPattern = gd.getNextString();
 		inst.suffixEdited = gd.getNextString();
+		inst.additionalMainPatterns = gd.getNextString();
+		inst.multiChannel = gd.getNextBoolean();
+		inst.mainChannel = Math.max(1, (int) gd.getNextNumber());
+		inst.helperChannel = Math.max(1, (int) gd.getNextNumber());
 		inst.importRois = gd.getNextBoolean();
+		inst.parallelProcessing = gd.getNextBoolean();
 		inst.resultsToNewFolder = gd.getNextBoolean();
+		inst.skipUpToDate = gd.getNextBoolean();
+		inst.prefetchDepth = Math.max(0, (int) gd.getNextNumber());
+		inst.heapFraction = Math.min(1.0, Math.max(0.05, gd.getNextNumber()));
+		inst.memoryMapped = gd.getNextBoolean();
+		inst.projectionCacheMB = Math.max(0, (int) gd.getNextNumber());
+		inst.streamingOutput = gd.getNextBoolean();
+		inst.outputCompression = gd.getNextChoice();
+		inst.cropToRois = gd.getNextBoolean();
+		inst.cropMargin = Math.max(0, (int) gd.getNextNumber());
 
 		if(gd.wasCanceled()) throw new Exception("GD canceled by user");
 
@@ -139,8 +196,7 @@ public class ProcessSettings {
 				throw new IOException();
 			} else {
 				FileInfo info = WindowManager.getCurrentImage().getOriginalFileInfo();
-				this.names.add(info.fileName); // get name
-				this.paths.add(info.directory); // get directory
+				this.addTask(info.directory, info.fileName);
 			}
 		} else if (this.selectedTaskVariant == TASKVARIANTS[1]) { // select files individually
 			if (WindowManager.getIDList() == null) {
@@ -151,37 +207,29 @@ public class ProcessSettings {
 			if (IDlist.length == 1) {
 				selectedTaskVariant = TASKVARIANTS[0];
 				FileInfo info = WindowManager.getCurrentImage().getOriginalFileInfo();
-				names.add(info.fileName); // get name
-				paths.add(info.directory); // get directory
+				addTask(info.directory, info.fileName);
 			} else {
 				for (int i = 0; i < IDlist.length; i++) {
 					FileInfo info = WindowManager.getImage(IDlist[i]).getOriginalFileInfo();
-					names.add(info.fileName); // get name
-					paths.add(info.directory); // get directory
+					addTask(info.directory, info.fileName);
 				}
 			}
 		} else if (this.selectedTaskVariant == TASKVARIANTS[2]) {
+			// files are added to the running batch while the dialog is open, so the
+			// output dir is chosen first - there is no selected file to start from yet
+			selectOutputDir();
+			synchronized (this) {
+				this.taskListOpen = true;
+			}
 			OpenFilesDialog od = new OpenFilesDialog(this);
 			od.setLocation(0, 0);
 			od.setVisible(true);
 
 			od.addWindowListener(new java.awt.event.WindowAdapter() {
 				public void windowClosing(WindowEvent winEvt) {
-					return;
+					closeTaskList();
 				}
 			});
-
-			// Waiting for od to be done
-			while (od.done == false) {
-				try {
-					Thread.currentThread().sleep(50);
-				} catch (Exception e) {
-				}
-			}
-			for (File f : od.filesToOpen) {
-				names.add(f.getName());
-				paths.add(f.getParent() + System.getProperty("file.separator"));
-			}
 		} else if (this.selectedTaskVariant == TASKVARIANTS[3]) {
 			readFilesFromTxt(System.getProperty("user.dir"));
 		} else if (this.selectedTaskVariant == TASKVARIANTS[4]) {
@@ -204,12 +252,20 @@ public class ProcessSettings {
 			if (path.contains(".txt"))
 				validInput = true;
 		}
-		File file = new File(path);
+		addTasksFromTxt(new File(path));
+	}
+
+	/**
+	 * Adds the files listed in the txt-file (one path per line) as tasks.
+	 * 
+	 * @throws IOException if txt file not found
+	 */
+	void addTasksFromTxt(File file) throws IOException {
 		BufferedReader br = new BufferedReader(new FileReader(file));
 		String s = "";
 		while ((s = br.readLine()) != null) {
-			names.add(s.substring(s.lastIndexOf(System.getProperty("file.separator")) + 1));
-			paths.add(s.substring(0, s.lastIndexOf(System.getProperty("file.separator")) + 1));
+			addTask(s.substring(0, s.lastIndexOf(System.getProperty("file.separator")) + 1),
+					s.substring(s.lastIndexOf(System.getProperty("file.separator")) + 1));
 		}
 		br.close();
 	}
@@ -251,28 +307,27 @@ public class ProcessSettings {
 		fc.setCurrentDirectory(new File(rootPath));
 		fc.showDialog(fc, "Choose directory to start pattern matching");
 
-		Stack<File> q = new Stack<File>();
-		for(File f : fc.getSelectedFiles()) {
-			q.push(f);
-		}
-		
 		patternMatchingGD();		// request User input as params for pattern matching
-		File[] fid; // Files in Dir
-		while (!q.isEmpty()) {
-			fid = q.pop().listFiles();
-			for (File f : fid) { // loop through files in dir
-				if (f.isDirectory() && !f.getName().matches(this.negDirPattern)) {
-					q.push(f); // add to queue if f is a dir and negDirPattern can't be matched
-				}
-				else if (f.getName().matches(this.posFilePattern) && !f.getName().matches(this.negFilePattern)) { 
-					// add to file list if posPattern matches and negative Pattern doesn't
-					this.names.add(f.getName());
-					this.paths.add(f.getParent() + System.getProperty("file.separator"));
-				}
-			}
-		}
+		addMatchingFiles(fc.getSelectedFiles());
 		return;
 	}
+
+	/**
+	 * Adds the files below the roots matching the (regex) file patterns as tasks,
+	 * sorted by path.
+	 */
+	void addMatchingFiles(File[] roots) {
+		FileIndexCache index = FileIndexCache.load();	// directory listings of previous runs
+		FileCrawler crawler = new FileCrawler(this.posFilePattern, this.negFilePattern, this.negDirPattern, index);
+		for (File f : crawler.crawl(roots)) {
+			this.addTask(f.getParent() + System.getProperty("file.separator"), f.getName());
+		}
+		try {
+			index.save();
+		} catch (IOException e) {
+			IJ.log("Could not save file index: " + e.getMessage());
+		}
+	}
 	
 	/**
 	 * GD requesting user input for Pattern matching and formatting input data
@@ -324,8 +379,8 @@ public class ProcessSettings {
 		p.negFilePattern = ""; // pattern to exclude filenames even if pos Pattern was matched
 		p.negDirPattern = "742";	// pattern to exclude files by parent dir
 		p.matchPattern("F:\\");
-		for(int i = 0; i < p.names.size(); i++) {
-			System.out.println(p.paths.get(i)+p.names.get(i) );
+		for(int i = 0; i < p.getNOfTasks(); i++) {
+			System.out.println(p.getPath(i)+p.getName(i) );
 		}
 		System.out.println("done!");
 	}
@@ -346,6 +401,33 @@ public class ProcessSettings {
 	 * @return reference of opened ImagePlus
 	 */
 	public ImagePlus openImage(String path) {
+		return openImage(path, 0);
+	}
+
+	/**
+	 * Opens one channel of a multi-channel image: only the planes of the channel
+	 * are read if the image is an uncompressed tif, otherwise the whole file is
+	 * opened and the channel extracted.
+	 *
+	 * @param channel 1-based channel, 0 to open the whole file
+	 */
+	public ImagePlus openImage(String path, int channel) {
+		if (channel > 0) {
+			ImagePlus imp = this.selectedBioFormat.equals(ProcessSettings.bioFormats[0])
+					? MappedTiffStack.readChannel(path, channel)
+					: null;
+			if (imp == null) {
+				ImagePlus all = openImage(path, 0);
+				if (all == null || channel > all.getNChannels()) {
+					return null;
+				}
+				imp = new ImagePlus(all.getTitle(), ChannelSplitter.getChannel(all, channel));
+				imp.setDimensions(1, all.getNSlices(), all.getNFrames());
+				imp.setCalibration(all.getCalibration());
+				all.close();
+			}
+			return imp;
+		}
 		ImagePlus imp;
 		if (this.selectedBioFormat.equals(ProcessSettings.bioFormats[0])) {
 			imp = IJ.openImage(path);
@@ -357,20 +439,300 @@ public class ProcessSettings {
 		return imp;
 	}
 
-	public int getNOfTasks() {
-		return this.names.size();
+	/**
+	 * @return name of the helper channel file belonging to the main channel file
+	 *         name
+	 */
+	String helperName(String name) {
+		return this.multiChannel ? name : name.replaceAll(this.mainPattern, this.helperPattern);
+	}
+
+	/**
+	 * @return channel of the main channel file to open, 0 for the whole file
+	 */
+	int mainChannelToRead() {
+		return this.multiChannel ? this.mainChannel : 0;
+	}
+
+	/**
+	 * @return channel of the helper channel file to open, 0 for the whole file
+	 */
+	int helperChannelToRead() {
+		return this.multiChannel ? this.helperChannel : 0;
+	}
+
+	/**
+	 * @return names of the further channel files edited with the Rois of the main
+	 *         channel file name, empty if there are none - for multi-channel tifs
+	 *         the file itself once per channel, see
+	 *         {@link #additionalChannelsToRead()}. Patterns that don't yield a
+	 *         different file (main channel pattern not in the name) are left out,
+	 *         the main channel would be edited twice into the same output.
+	 */
+	String[] additionalTargets(String name) {
+		ArrayList<String> targets = new ArrayList<String>();
+		for (String pattern : additionalPatterns()) {
+			if (this.multiChannel) {
+				targets.add(name);
+			} else if (!name.replace(this.mainPattern, pattern).equals(name)) {
+				targets.add(name.replace(this.mainPattern, pattern));
+			}
+		}
+		return targets.toArray(new String[targets.size()]);
+	}
+
+	/**
+	 * @return channels to open of the files of {@link #additionalTargets(String)},
+	 *         0 for whole files (separate files, then at least as many entries as
+	 *         targets)
+	 */
+	int[] additionalChannelsToRead() {
+		ArrayList<String> patterns = additionalPatterns();
+		int[] channels = new int[patterns.size()];
+		for (int i = 0; i < channels.length && this.multiChannel; i++) {
+			channels[i] = Integer.parseInt(patterns.get(i));
+		}
+		return channels;
+	}
+
+	/**
+	 * @return patterns (channel numbers for multi-channel tifs) of the further
+	 *         channels to edit
+	 */
+	ArrayList<String> additionalPatterns() {
+		ArrayList<String> patterns = new ArrayList<String>();
+		for (String pattern : this.additionalMainPatterns.split(",")) {
+			pattern = pattern.trim();
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			if (this.multiChannel) { // channel numbers
+				if (pattern.matches("\\d+") && Integer.parseInt(pattern) > 0
+						&& Integer.parseInt(pattern) != this.mainChannel) {
+					patterns.add(pattern);
+				}
+			} else if (!pattern.equals(this.mainPattern)) {
+				patterns.add(pattern);
+			}
+		}
+		return patterns;
+	}
+
+	/**
+	 * @return path of the set of Rois stored with the image name in dir
+	 */
+	String roisPath(String dir, String name) {
+		return dir + name.replace(this.mainPattern, "_Rois.zip");
+	}
+
+	/**
+	 * @return output path of the edited main channel
+	 */
+	String editedPath(String outputDir, String name) {
+		return editedPath(outputDir, name, mainChannelToRead());
+	}
+
+	/**
+	 * @param channel channel read from the file name, 0 for the whole file
+	 * @return output path of the edited channel
+	 */
+	String editedPath(String outputDir, String name, int channel) {
+		return outputDir + name.substring(0, name.lastIndexOf(".tif")) + (channel > 0 ? "_C" + channel : "")
+				+ this.suffixEdited + ".tif";
+	}
+
+	/**
+	 * @return output path of the merged z-projection
+	 */
+	String zProjectionPath(String outputDir, String name) {
+		return outputDir + name.replaceAll(this.mainPattern, "_zProjection.tif");
+	}
+
+	/**
+	 * @return the settings that determine the output files, see
+	 *         {@link TaskManifest}
+	 */
+	String outputSignature() {
+		String signature = this.mainPattern + "|" + this.helperPattern + "|" + this.suffixEdited;
+		if (!this.additionalMainPatterns.trim().isEmpty()) {
+			signature += "|" + this.additionalMainPatterns.trim();
+		}
+		if (this.multiChannel) {
+			signature += "|channels " + this.mainChannel + "," + this.helperChannel;
+		}
+		// default output keeps the signature of manifests written before the options existed
+		if (compression() != CompressedTiffWriter.NONE) {
+			signature += "|" + this.outputCompression;
+		}
+		return this.cropToRois ? signature + "|crop" + this.cropMargin : signature;
+	}
+
+	/**
+	 * @return compression of edited stacks as {@link CompressedTiffWriter} constant
+	 */
+	int compression() {
+		return Math.max(0, Arrays.asList(COMPRESSIONS).indexOf(this.outputCompression));
+	}
+
+	/**
+	 * @return true if every task has its set of Rois, i.e. the batch can run
+	 *         without user interaction
+	 */
+	public boolean allRoisAvailable() {
+		for (int i = 0; i < this.getNOfTasks(); i++) {
+			if (!isRemoved(i) && !new File(roisPath(this.getPath(i), this.getName(i))).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Opens an image whose pixels are only read, e.g. the helper channel that is
+	 * only projected. If enabled, uncompressed tifs are mapped as
+	 * {@link MappedTiffStack} instead of being loaded onto the heap.
+	 * 
+	 * @param path path to file to be opened
+	 * @return reference of opened ImagePlus
+	 */
+	public ImagePlus openReadOnlyImage(String path) {
+		return openReadOnlyImage(path, 0);
+	}
+
+	/**
+	 * @param channel 1-based channel of a multi-channel tif, 0 for the whole file
+	 */
+	public ImagePlus openReadOnlyImage(String path, int channel) {
+		if (this.memoryMapped && this.selectedBioFormat.equals(ProcessSettings.bioFormats[0])) {
+			ImagePlus imp = channel > 0 ? MappedTiffStack.openChannel(path, channel) : MappedTiffStack.open(path);
+			if (imp != null) {
+				return imp;
+			}
+		}
+		return openImage(path, channel);
 	}
 
 	/**
+	 * Opens a tif as virtual stack, slices are only read when accessed.
 	 * 
-	 * @return task list as Array, use to init {@link ProgressDialog}
+	 * @param path path to file to be opened
+	 * @return reference of opened ImagePlus or null if the file can't be opened
+	 *         virtually
+	 */
+	public ImagePlus openVirtualImage(String path) {
+		return openVirtualImage(path, 0);
+	}
+
+	/**
+	 * @param channel 1-based channel of a multi-channel tif (memory-mapped, null if
+	 *                the tif is compressed), 0 for the whole file
 	 */
-	public String[] toArray() {
-		String[] s = new String[this.getNOfTasks()];
-		for (int i = 0; i < this.getNOfTasks(); i -= -1) {
-			s[i] = this.names.get(i);
+	public ImagePlus openVirtualImage(String path, int channel) {
+		if (!this.selectedBioFormat.equals(ProcessSettings.bioFormats[0])) {
+			return null;
 		}
-		return s;
+		return channel > 0 ? MappedTiffStack.openChannel(path, channel) : IJ.openVirtual(path);
+	}
+
+	public synchronized int getNOfTasks() {
+		return this.tasks.size();
+	}
+
+	/**
+	 * @return file name of the task
+	 */
+	public synchronized String getName(int taskIndex) {
+		return this.tasks.getName(taskIndex);
+	}
+
+	/**
+	 * @return parent dir of the task with last file sep
+	 */
+	public synchronized String getPath(int taskIndex) {
+		return this.tasks.getDir(taskIndex);
+	}
+
+	/**
+	 * Appends a task, also while processing is running if the task list is open.
+	 * 
+	 * @param path parent dir with last file sep
+	 * @param name file name
+	 */
+	public void addTask(String path, String name) {
+		IntConsumer listener;
+		synchronized (this) {
+			this.tasks.add(path, name);
+			listener = this.taskListener;
+			notifyAll();
+		}
+		if (listener != null) {
+			listener.accept(1);
+		}
+	}
+
+	/**
+	 * Marks a task that was not started yet as removed from the selection.
+	 */
+	public synchronized void removeTask(int taskIndex) {
+		if (this.tasks.getState(taskIndex) == TaskTable.PENDING) {
+			this.tasks.setState(taskIndex, TaskTable.REMOVED);
+		}
+	}
+
+	public synchronized boolean isRemoved(int taskIndex) {
+		return this.tasks.getState(taskIndex) == TaskTable.REMOVED;
+	}
+
+	/**
+	 * Records the outcome of a processed task.
+	 */
+	public synchronized void setTaskDone(int taskIndex, boolean success) {
+		this.tasks.setState(taskIndex, success ? TaskTable.DONE : TaskTable.FAILED);
+	}
+
+	/**
+	 * @return state of the task, see {@link TaskTable#PENDING} etc.
+	 */
+	public synchronized byte getTaskState(int taskIndex) {
+		return this.tasks.getState(taskIndex);
+	}
+
+	/**
+	 * @return true while files may still be added (manual file selection open)
+	 */
+	public synchronized boolean isTaskListOpen() {
+		return this.taskListOpen;
+	}
+
+	/**
+	 * No more tasks will be added, releases threads waiting in
+	 * {@link #awaitTask(int)}.
+	 */
+	public synchronized void closeTaskList() {
+		this.taskListOpen = false;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until the task was added or the task list was closed.
+	 * 
+	 * @return true if the task exists, false if the list ended before
+	 */
+	public synchronized boolean awaitTask(int taskIndex) throws InterruptedException {
+		while (taskIndex >= this.tasks.size() && this.taskListOpen) {
+			wait();
+		}
+		return taskIndex < this.tasks.size();
+	}
+
+	/**
+	 * Passes the number of tasks so far and then of every task added later to the
+	 * listener, e.g. to append them to the {@link ProgressDialog}. No names are
+	 * decoded, the listener reads them from this when needed.
+	 */
+	public synchronized void followTasks(IntConsumer listener) {
+		listener.accept(this.tasks.size());
+		this.taskListener = listener;
 	}
 
 	/**
@@ -378,14 +740,14 @@ public class ProcessSettings {
 	 * fixed dir)
 	 */
 	public String getOutputDir(int taskIndex) {
-		return this.resultsToNewFolder ? this.resultsDir : this.paths.get(taskIndex);
+		return this.resultsToNewFolder ? this.resultsDir : this.getPath(taskIndex);
 	}
 
 	public void selectOutputDir() {
 		if (this.resultsToNewFolder) {
 			String path = System.getProperty("user.dir");
-			if (this.paths.size() != 0)  {
-				path = this.paths.get(0);
+			if (this.getNOfTasks() != 0)  {
+				path = this.getPath(0);
 			}
 			JFileChooser fc = new JFileChooser();
 			fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -1,6 +1,8 @@
 package area_selector_ciliaQ;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -21,27 +23,37 @@ public class Processing {
 	 */
 
 	static boolean doProcessing(String path, String name, String outputDir, ProcessSettings pS, ProgressDialog pD) {
+		return doProcessing(path, name, outputDir, pS, pD, null, null, null);
+	}
 
-		ImagePlus c1 = IJ.openImage(path + name);
-		String c2Name = name.replaceAll(pS.mainPattern, pS.helperPattern);
-		ImagePlus c2;
-		try{
-			c2 = IJ.openImage(path + c2Name); // channel used to determine selection
-		} catch (NullPointerException e) {
-			return false;
-		}
+	/**
+	 * @param prefetched images loaded in advance by {@link ImagePrefetcher}, null
+	 *                   to load them here
+	 * @param writer     takes over saving the results, null to save them here
+	 * @param timer      receives the time spent per stage, may be null
+	 */
+	static boolean doProcessing(String path, String name, String outputDir, ProcessSettings pS, ProgressDialog pD,
+			Future<TaskImages> prefetched, WriteBehindQueue writer, StageTimer timer) {
 
-		c1.show();
-		c2.show();
+		if (!needsUserInput(path, name, pS)) {
+			return HeadlessProcessing.doProcessing(path, name, outputDir, pS, pD, timer);
+		}
+		File roisFile = new File(pS.roisPath(path, name));
 
-		IJ.run("Merge Channels...", "c1=[" + c1.getTitle() + "] c2=[" + c2.getTitle() + "] create keep ignore");
-		ImagePlus merged = IJ.getImage();
+		TaskImages images;
+		try {
+			images = prefetched != null ? TaskImages.get(prefetched)
+					: TaskImages.load(path, name, pS, StageTimer.task(timer, path, name), ImagePlus::show);
+		} catch (IOException e) {
+			pD.notifyMessage(name + ": " + e.getMessage(), ProgressDialog.ERROR);
+			return false;
+		}
+		ImagePlus c1 = images.c1;
+		ImagePlus merged = images.merged;
+		ImagePlus zProj = images.zProj;
+		StageTimer.Task timing = images.timing;
 		merged.show();
-		c1.hide();
-		c2.hide();
-		ImagePlus zProj = (ImagePlus) merged.clone();
-		IJ.run(zProj, "Z Project...", "projection=[Max Intensity]");
-		zProj = IJ.getImage();
+		zProj.show();
 		IJ.setTool("freehand");
 		IJ.setBackgroundColor(0, 0, 0);
 		RoiManager rm = new RoiManager();
@@ -49,52 +61,132 @@ public class Processing {
 			rm.runCommand(zProj, "Show All");
 		}
 		
-		File roisFile = new File(path + name.replace(pS.mainPattern, "_Rois.zip"));
-		if (!pS.importRois || !roisFile.exists()) {
-			if(pS.importRois || !roisFile.exists()) {
-				IJ.showMessage("Rois for file " + name + " not found - please draw the Rois");
-			}
-			new WaitForUserDialog("Draw ROIs around desired area and press Ctrl + T\n"
-					+ "to add selection add to ROI manager.\n" + "Confirm with OK").show();
+		long start = timing.start();
+		if (pS.importRois || !roisFile.exists()) {
+			IJ.showMessage("Rois for file " + name + " not found - please draw the Rois");
 		}
-		else {
-			rm.runCommand("Open", roisFile.getAbsolutePath());
-			merged.hide();
-		} 
+		new WaitForUserDialog("Draw ROIs around desired area and press Ctrl + T\n"
+				+ "to add selection add to ROI manager.\n" + "Confirm with OK").show();
+		timing.stop(StageTimer.WAIT_FOR_USER, start);
 		if (rm.getCount() == 0) { // no selection made
-			c1.close();
-			c2.close();
-			merged.close();
-			zProj.close();
+			images.close();
 			rm.close();
 			return false;
 		}
-		if (rm.getCount() > 1) {
-			rm.runCommand("Save", outputDir + name.replace(pS.mainPattern, "_Rois.zip"));
-			rm.deselect();
-			rm.runCommand("Combine");
-			rm.reset();
-			rm.runCommand("Add");
+		start = timing.start();
+		Roi[] rois = rm.getRoisAsArray();
+		if (rois.length > 1) {
+			rm.runCommand("Save", pS.roisPath(outputDir, name));
+			timing.written(pS.roisPath(outputDir, name));
 		}
-		rm.select(c1, 0);
-		IJ.run(c1, "Clear Outside", "stack");
-		rm.deselect();
-		Roi roisCombined = rm.getRoi(0);
-		rm.runCommand(c1, "Delete");
+		// raster union instead of "Combine", the outline is only traced for the overlay
+		SpanMask mask = SpanMask.fromRois(rois, c1.getWidth(), c1.getHeight());
+		Roi roisCombined = rois.length == 1 ? rois[0] : mask.toRoi();
+		timing.stop(StageTimer.ROIS, start);
+		start = timing.start();
+		HeadlessProcessing.clearOutside(c1, mask, null);
+		if (pS.cropToRois) {
+			HeadlessProcessing.cropToMask(c1, mask, pS.cropMargin);
+		}
+		timing.stop(StageTimer.CLEAR, start);
+		rm.reset();
 
 		IJ.run(c1, "Remove Overlay", "");
-		IJ.save(c1, outputDir + name.substring(0, name.lastIndexOf(".tif")) + pS.suffixEdited + ".tif");
+		String c1Path = pS.editedPath(outputDir, name);
+		if (writer != null) {
+			writer.submit(c1, c1Path, pS.compression(), timing, StageTimer.SAVE_EDITED);
+			images.c1 = null; // owned by writer
+		} else {
+			start = timing.start();
+			try {
+				HeadlessProcessing.save(c1, c1Path, pS.compression());
+			} catch (IOException e) {
+				pD.notifyMessage(name + ": " + e.getMessage(), ProgressDialog.ERROR);
+				images.close();
+				rm.close();
+				return false;
+			}
+			timing.stop(StageTimer.SAVE_EDITED, start);
+			timing.written(c1Path);
+		}
+		boolean targetsSaved = editTargets(path, name, outputDir, pS, pD, mask, writer, timing);
 
-		rm.addRoi(roisCombined);
-		rm.select(zProj, 0);
-		IJ.save(zProj, outputDir + name.replaceAll(pS.mainPattern, "_zProjection.tif"));
+		if (roisCombined != null) {
+			rm.addRoi(roisCombined);
+			rm.select(zProj, 0);
+		}
+		String zProjPath = pS.zProjectionPath(outputDir, name);
+		if (writer != null) {
+			zProj.hide();
+			writer.submit(zProj, zProjPath, timing, StageTimer.SAVE_PROJECTION);
+			images.zProj = null;
+		} else {
+			start = timing.start();
+			IJ.save(zProj, zProjPath);
+			timing.stop(StageTimer.SAVE_PROJECTION, start);
+			timing.written(zProjPath);
+		}
 
-		c1.close();
-		c2.close();
-		merged.close();
-		zProj.close();
+		images.close();
 		rm.close();
 
-		return true;
+		return targetsSaved;
+	}
+
+	/**
+	 * Opens, clears and saves the further channels to edit with the ROIs drawn on
+	 * the main channel. Errors are reported, the task continues.
+	 *
+	 * @return false if a channel could not be opened or saved here
+	 */
+	private static boolean editTargets(String path, String name, String outputDir, ProcessSettings pS,
+			ProgressDialog pD, SpanMask mask, WriteBehindQueue writer, StageTimer.Task timing) {
+		String[] names = pS.additionalTargets(name);
+		int[] channels = pS.additionalChannelsToRead();
+		if (names.length == 0) {
+			return true;
+		}
+		ImagePlus[] targets = new ImagePlus[names.length];
+		long start = timing.start();
+		try {
+			HeadlessProcessing.openTargets(path, names, channels, targets, mask.width, mask.height, pS, false);
+		} catch (IOException e) {
+			pD.notifyMessage(name + ": " + e.getMessage(), ProgressDialog.ERROR);
+			return false;
+		}
+		timing.stop(StageTimer.OPEN_MAIN, start);
+		for (String target : names) {
+			timing.read(path + target);
+		}
+		start = timing.start();
+		HeadlessProcessing.clearTargets(targets, mask, pS);
+		timing.stop(StageTimer.CLEAR, start);
+		boolean saved = true;
+		for (int i = 0; i < targets.length; i++) {
+			String targetPath = pS.editedPath(outputDir, names[i], channels[i]);
+			if (writer != null) {
+				writer.submit(targets[i], targetPath, pS.compression(), timing, StageTimer.SAVE_EDITED);
+			} else {
+				start = timing.start();
+				try {
+					HeadlessProcessing.save(targets[i], targetPath, pS.compression());
+				} catch (IOException e) {
+					pD.notifyMessage(name + ": " + e.getMessage(), ProgressDialog.ERROR);
+					saved = false;
+				}
+				timing.stop(StageTimer.SAVE_EDITED, start);
+				timing.written(targetPath);
+				HeadlessProcessing.closeImage(targets[i]);
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * @return false if the ROI set is imported, i.e. the task can be processed by
+	 *         {@link HeadlessProcessing}
+	 */
+	static boolean needsUserInput(String path, String name, ProcessSettings pS) {
+		return !pS.importRois || !new File(pS.roisPath(path, name)).exists();
 	}
 }
\ No newline at end of file
@@ -10,7 +10,10 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.function.IntFunction;
 
+import javax.swing.AbstractListModel;
 import javax.swing.BoxLayout;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JLabel;
@@ -20,39 +23,127 @@ import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.ListModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+import ij.IJ;
 
 public class ProgressDialog extends javax.swing.JFrame implements ActionListener{
-	String dataLeft [], dataRight[], notifications [];
+	IntFunction<String> taskNames;	// name of task i, only read for the rows shown
+	int moved = 0;	// tasks moved to the processed files, in task order
+	ArrayList<String> notifications = new ArrayList<String>();
+	TaskListModel remainingModel = new TaskListModel(TaskListModel.REMAINING), processedModel = new TaskListModel(TaskListModel.PROCESSED);
+	TaskListModel notificationsModel = new TaskListModel(TaskListModel.NOTIFICATIONS);
+	boolean refreshPending = false;
+	int prototypeTasks = 0;	// tasks when the cell size of the task lists was fixed
 	public boolean notificationsAvailable = false, errorsAvailable = false;
 	int task, tasks;
+	boolean taskListOpen = false, waitingForTasks = false;	// tasks may be added while processing
 	
-	static final int ERROR = 0, NOTIFICATION = 1;
+	static final int ERROR = 0, NOTIFICATION = 1, LOG = 2;	// LOG does not flag the final state
+	static final int PROTOTYPE_SAMPLE = 100;	// tasks measured for the cell size of the task lists
+	static final int MAX_NOTIFICATIONS = 10000;	// further messages only go to the Log window
+	int droppedNotifications = 0;
 	JPanel bgPanel;
 	JScrollPane jScrollPaneLeft, jScrollPaneRight, jScrollPaneBottom;
 	JList ListeLeft, ListeRight, ListeBottom;
 	
 	private JProgressBar progressBar = new JProgressBar();
+	private JLabel timingsLabel;	// time per processing stage, see StageTimer
 	private double taskFraction = 0.0;
 	
-	public ProgressDialog(String [] taskList, int newTasks) {
+	/**
+	 * @param taskNames names of the tasks, read lazily when the lists show them - no copy of
+	 * 					the task list is made, so very large batches are listed without delay
+	 * @param newTasks number of tasks
+	 */
+	public ProgressDialog(IntFunction<String> taskNames, int newTasks) {
 		super();
 		initGUI();
-		dataLeft = taskList.clone();
+		this.taskNames = taskNames;
 		tasks = newTasks;
-		for(int i = 0; i < tasks; i++){
-			if(dataLeft[i]!=""){
-				dataLeft [i] = (i+1) + ": " + dataLeft [i]; 
-			}			
-		}
-		ListeLeft.setListData(dataLeft);
+		ListeLeft.setModel(remainingModel);
+		ListeRight.setModel(processedModel);
+		ListeBottom.setModel(notificationsModel);
+		refreshLists();
 		taskFraction = 0.0;
 		task = 1;
 	}
 	
+	/**
+	 * View of a range of the tasks or of the notifications (newest first). The sizes are only
+	 * changed on the event dispatch thread, from the counts of the dialog, see {@link #refreshLists()}.
+	 */
+	class TaskListModel extends AbstractListModel<String>{
+		private static final long serialVersionUID = 1L;
+		static final int REMAINING = 0, PROCESSED = 1, NOTIFICATIONS = 2;
+		final int content;
+		int first = 0, size = 0;
+		
+		TaskListModel(int content){
+			this.content = content;
+		}
+		
+		@Override
+		public int getSize(){
+			return size;
+		}
+		
+		@Override
+		public String getElementAt(int index){
+			if(content == NOTIFICATIONS){
+				synchronized(ProgressDialog.this){
+					return notifications.get(size - 1 - index);
+				}
+			}
+			int i = content == REMAINING ? first + index : size - 1 - index;	// processed: latest first
+			return (i+1) + ": " + taskNames.apply(i);
+		}
+		
+		void resize(int newFirst, int newSize){
+			int oldSize = size;
+			first = newFirst;
+			size = newSize;
+			if(newSize < oldSize){
+				fireIntervalRemoved(this, newSize, oldSize - 1);
+			}else if(newSize > oldSize){
+				fireIntervalAdded(this, oldSize, newSize - 1);
+			}
+			if(Math.min(oldSize, newSize) > 0){
+				fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+			}
+		}
+	}
+	
+	/**
+	 * Updates the lists to the current counts on the event dispatch thread; calls in between
+	 * are merged, so moving many tasks quickly does not flood the event queue.
+	 */
+	private synchronized void refreshLists(){
+		if(refreshPending){
+			return;
+		}
+		refreshPending = true;
+		SwingUtilities.invokeLater(() -> {
+			int nMoved, nTasks, nNotifications;
+			synchronized(ProgressDialog.this){
+				refreshPending = false;
+				nMoved = moved;
+				nTasks = tasks;
+				nNotifications = notifications.size();
+			}
+			if(nTasks > prototypeTasks && prototypeTasks < PROTOTYPE_SAMPLE){
+				fixCellSize(nTasks);
+			}
+			remainingModel.resize(nMoved, Math.max(0, nTasks - nMoved));
+			processedModel.resize(0, nMoved);
+			notificationsModel.resize(0, nNotifications);
+		});
+	}
+	
 	private void initGUI() {
 		int prefXSize = 600, prefYSize = 500;
-		this.setMinimumSize(new java.awt.Dimension(prefXSize, prefYSize+40));
-		this.setSize(prefXSize, prefYSize+40);			
+		this.setMinimumSize(new java.awt.Dimension(prefXSize, prefYSize+80));
+		this.setSize(prefXSize, prefYSize+80);			
 		this.setTitle("Multi-Task-Manager - by JN Hansen (\u00a9 2016)");
 //		this.setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
 		//Surface
@@ -135,6 +226,12 @@ public class ProgressDialog extends javax.swing.JFrame implements ActionListener
 				progressBar.setString("no analysis started!");
 				bgPanel.add(progressBar);	
 			}
+			{
+				timingsLabel = new JLabel(" ", SwingConstants.LEFT);
+				timingsLabel.setPreferredSize(new java.awt.Dimension(prefXSize,40));
+				timingsLabel.setVisible(true);
+				bgPanel.add(timingsLabel);
+			}
 			{
 				JPanel spacer = new JPanel();
 				spacer.setMaximumSize(new java.awt.Dimension(prefXSize,10));
@@ -170,6 +267,23 @@ public class ProgressDialog extends javax.swing.JFrame implements ActionListener
 			getContentPane().add(bgPanel);		
 	}
 	
+	/**
+	 * Fixes the cell size of the task lists to the longest of the first tasks, otherwise the lists
+	 * measure every task to lay out the cells.
+	 */
+	private void fixCellSize(int nTasks){
+		String prototype = "";
+		for(int i = 0; i < Math.min(nTasks, PROTOTYPE_SAMPLE); i++){
+			String label = nTasks + ": " + taskNames.apply(i);
+			if(label.length() > prototype.length()){
+				prototype = label;
+			}
+		}
+		ListeLeft.setPrototypeCellValue(prototype + "  ");
+		ListeRight.setPrototypeCellValue(prototype + "  ");
+		prototypeTasks = nTasks;
+	}
+	
 	@Override
 	public void actionPerformed(ActionEvent ae) {
 		Object eventQuelle = ae.getSource();
@@ -179,88 +293,93 @@ public class ProgressDialog extends javax.swing.JFrame implements ActionListener
 //		}	
 	}
 	
-	public void moveTask(int i){		
-		if(dataRight == null){
-			dataRight = new String [2];
-			dataRight [0] = "" + dataLeft[0];
-			
-			String [] dataLeftCopy = dataLeft.clone();
-			dataLeft = new String [dataLeft.length-1];
-			for(int j = 1; j < dataLeftCopy.length; j++){
-				dataLeft[j-1] = dataLeftCopy[j];
-			}
-		}else if(i==(tasks-1)){
-			String [] dataRightCopy = dataRight.clone();
-			dataRight = new String [dataRight.length+1];
-			for(int j = 0; j < dataRightCopy.length; j++){
-				dataRight[j+1] = dataRightCopy[j];
-			}
-			dataRight[0] = ""+dataLeft[0];			
-			dataLeft = new String [2];
-		}else{
-			String [] dataRightCopy = dataRight.clone();
-			dataRight = new String [dataRight.length+1];
-			for(int j = 0; j < dataRightCopy.length; j++){
-				dataRight[j+1] = dataRightCopy[j];
-			}
-			dataRight[0] = ""+dataLeft[0];
-						
-			String [] dataLeftCopy = dataLeft.clone();
-			dataLeft = new String [dataLeft.length-1];
-			for(int j = 1; j < dataLeftCopy.length; j++){
-				dataLeft[j-1] = dataLeftCopy[j];
-			}			
-		}	
-		ListeLeft.setListData(dataLeft);
-		ListeRight.setListData(dataRight);
-		jScrollPaneLeft.updateUI();
-		jScrollPaneRight.updateUI();
-		bgPanel.updateUI();
+	public synchronized void moveTask(int i){		
+		if(moved < tasks){
+			moved++;
+		}
+		refreshLists();
 		
 		if(task == tasks){
-			if(errorsAvailable){
-				replaceBarText("processing done but some tasks failed (see notifications)!");
-				progressBar.setValue(100); 		
-				progressBar.setStringPainted(true);
-				progressBar.setForeground(Color.red);
-			}else if(notificationsAvailable){
-				replaceBarText("processing done, but some notifications are available!");
-				progressBar.setValue(100); 
-				progressBar.setStringPainted(true);
-				progressBar.setForeground(new Color(255,130,0));
+			if(taskListOpen){
+				waitingForTasks = true;	// final state is shown when the task list is closed
 			}else{
-				replaceBarText("analysis done!");
-				progressBar.setStringPainted(true);
-				progressBar.setForeground(new Color(0,140,0));
+				showFinalState();
 			}
-			progressBar.setValue(100);
 		}else{
 			taskFraction = 0.0;
 			task++;
 		}
 	}
 	
-	public void notifyMessage(String message, int type){
+	/**
+	 * Appends tasks to the remaining files, e.g. while files are still being selected.
+	 * Their names are read from taskNames when the list shows them.
+	 * 
+	 * @param added number of tasks appended
+	 */
+	public synchronized void addTasks(int added){
+		if(added <= 0){
+			return;
+		}
+		tasks += added;
+		if(waitingForTasks){
+			waitingForTasks = false;
+			taskFraction = 0.0;
+			task++;
+		}
+		refreshLists();
+	}
+	
+	/**
+	 * While the task list is open, moving the last task does not finish the progress display.
+	 */
+	public synchronized void setTaskListOpen(boolean open){
+		taskListOpen = open;
+		if(!open && waitingForTasks){
+			waitingForTasks = false;
+			showFinalState();
+		}
+	}
+	
+	private void showFinalState(){
+		if(errorsAvailable){
+			replaceBarText("processing done but some tasks failed (see notifications)!");
+			progressBar.setValue(100); 		
+			progressBar.setStringPainted(true);
+			progressBar.setForeground(Color.red);
+		}else if(notificationsAvailable){
+			replaceBarText("processing done, but some notifications are available!");
+			progressBar.setValue(100); 
+			progressBar.setStringPainted(true);
+			progressBar.setForeground(new Color(255,130,0));
+		}else{
+			replaceBarText("analysis done!");
+			progressBar.setStringPainted(true);
+			progressBar.setForeground(new Color(0,140,0));
+		}
+		progressBar.setValue(100);
+	}
+	
+	public synchronized void notifyMessage(String message, int type){
 		if(type == ERROR){
 			errorsAvailable = true;
 		}else if(type == NOTIFICATION){
 			notificationsAvailable = true;
 		}
 		
-		if(notifications==null){
-			notifications = new String [2];
-			notifications [0] = message;
-		}else{
-			String [] notificationsCopy = notifications.clone();
-			notifications = new String [notifications.length+1];
-			for(int j = 0; j < notificationsCopy.length; j++){
-				notifications[j+1] = notificationsCopy[j];
+		if(notifications.size() < MAX_NOTIFICATIONS - 1){
+			notifications.add(message);
+		}else{	// the last entry counts the further messages
+			IJ.log(message);
+			droppedNotifications++;
+			String summary = droppedNotifications + " further notification(s), see the Log window";
+			if(notifications.size() < MAX_NOTIFICATIONS){
+				notifications.add(summary);
+			}else{
+				notifications.set(MAX_NOTIFICATIONS - 1, summary);
 			}
-			notifications [0] = message;
 		}
-		ListeBottom.setListData(notifications);
-		jScrollPaneBottom.updateUI();
-		bgPanel.updateUI();
+		refreshLists();
 	}
 	
 	public void addToBar(double addFractionOfTask){
@@ -286,6 +405,10 @@ public class ProgressDialog extends javax.swing.JFrame implements ActionListener
 		bgPanel.updateUI();
 	}
 	
+	public void updateTimings(String text){
+		timingsLabel.setText("<html>" + text + "</html>");
+	}
+	
 	public void replaceBarText(String text){			
 		progressBar.setString(text);
 		bgPanel.updateUI();
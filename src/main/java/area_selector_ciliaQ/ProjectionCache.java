@@ -0,0 +1,203 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+/**
+ * Disk cache of max projections, addressed by file version: the projection of
+ * a helper channel is stored as &lt;helper key&gt;.tif, the merged display
+ * projection as &lt;main key&gt;-&lt;helper key&gt;.tif, where the key is
+ * derived from path, size and modification time (see
+ * {@link FileHashes#versionKey(File)}; channels read from multi-channel tifs
+ * are appended as _c&lt;channel&gt;). Looking up a projection therefore reads
+ * no pixels - a changed modification time is a miss, as recognizing unchanged
+ * content would take a full read of the file, like projecting it again.
+ * Revisiting an image neither loads nor projects the helper channel again: in
+ * headless processing it is not opened at all, for drawing the cached
+ * projection is shown at once and the helper channel is opened virtually for
+ * the merged view. Least recently used files are evicted when the cache
+ * exceeds its disk budget.
+ *
+ * @author Sebastian Rassmann
+ */
+public class ProjectionCache {
+
+	private static ProjectionCache instance;
+
+	private final File dir;
+	private final long budgetBytes;
+
+	ProjectionCache(File dir, long budgetBytes) {
+		this.dir = dir;
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * @return the cache in the ImageJ preferences directory or null if disabled
+	 *         (budget 0)
+	 */
+	static synchronized ProjectionCache forSettings(ProcessSettings pS) {
+		if (pS.projectionCacheMB <= 0) {
+			return null;
+		}
+		long budget = pS.projectionCacheMB * 1024L * 1024L;
+		if (instance == null || instance.budgetBytes != budget) {
+			instance = new ProjectionCache(new File(Prefs.getPrefsDir(),
+					"AreaSelectorCiliaQ" + File.separator + "projections"), budget);
+		}
+		return instance;
+	}
+
+	/**
+	 * Merged projection of main and helper channel from the cache, without loading
+	 * or projecting any channel.
+	 *
+	 * @param pS channels read from the files
+	 * @return the projection or null if it is not cached - its size is not
+	 *         checked against the channels
+	 */
+	ImagePlus cached(File mainFile, File helperFile, ProcessSettings pS) {
+		try {
+			return open(key(mainFile, pS.mainChannelToRead()) + "-" + key(helperFile, pS.helperChannelToRead()));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Merged projection of main and helper channel from the cache - or built from
+	 * the cached helper projection and the projection of c1.
+	 *
+	 * @param pS channels read from the files
+	 * @param c1 main channel, only projected if the merged projection is missing
+	 * @return the projection or null if the helper projection is not cached
+	 * @throws IOException if main and helper channel differ in size - checked
+	 *                     from the tif header of the helper channel, which is not
+	 *                     loaded
+	 */
+	ImagePlus project(File mainFile, File helperFile, ProcessSettings pS, ImagePlus c1) throws IOException {
+		String mainKey, helperKey;
+		try {
+			mainKey = key(mainFile, pS.mainChannelToRead());
+			helperKey = key(helperFile, pS.helperChannelToRead());
+		} catch (IOException e) {
+			return null;
+		}
+		ImagePlus merged = open(mainKey + "-" + helperKey);
+		if (merged != null) {
+			checkSize(helperFile, pS, c1, merged);
+			merged.setTitle("MAX_" + c1.getTitle());
+			return merged;
+		}
+		ImagePlus helperProjection = open(helperKey);
+		if (helperProjection == null) {
+			return null;
+		}
+		checkSize(helperFile, pS, c1, helperProjection);
+		merged = HeadlessProcessing.mergeProjections(Projector.maxProjection(c1.getStack()),
+				helperProjection.getProcessor(), "MAX_" + c1.getTitle(), c1);
+		try {
+			store(mainKey + "-" + helperKey, merged);
+		} catch (IOException e) {
+			IJ.log("Projection cache: " + e.getMessage());
+		}
+		return merged;
+	}
+
+	/**
+	 * Same checks as for loaded channels: the projection has the plane size of
+	 * c1, the helper channel (from its tif header) as many slices.
+	 */
+	private static void checkSize(File helperFile, ProcessSettings pS, ImagePlus c1, ImagePlus projection)
+			throws IOException {
+		boolean differs = projection.getWidth() != c1.getWidth() || projection.getHeight() != c1.getHeight();
+		long[] header = pS.selectedBioFormat.equals(ProcessSettings.bioFormats[0])
+				? AdmissionController.tiffHeader(helperFile.getPath())
+				: null;
+		if (header != null) {
+			header = AdmissionController.channel(header, pS.helperChannelToRead());
+			differs |= header[0] != c1.getWidth() || header[1] != c1.getHeight() || header[2] != c1.getStackSize();
+		}
+		if (differs) {
+			projection.close();
+			throw new IOException("main and helper channel differ in size");
+		}
+	}
+
+	/**
+	 * Stores the projection of the helper channel and the merged projection.
+	 */
+	void put(File mainFile, File helperFile, ProcessSettings pS, ImageProcessor helperProjection,
+			ImagePlus merged) {
+		try {
+			String mainKey = key(mainFile, pS.mainChannelToRead());
+			String helperKey = key(helperFile, pS.helperChannelToRead());
+			store(helperKey, new ImagePlus(helperFile.getName(), helperProjection));
+			store(mainKey + "-" + helperKey, merged);
+		} catch (IOException e) {
+			IJ.log("Projection cache: " + e.getMessage());
+		}
+	}
+
+	private static String key(File file, int channel) throws IOException {
+		String key = FileHashes.versionKey(file);
+		return channel > 0 ? key + "_c" + channel : key;
+	}
+
+	private ImagePlus open(String key) {
+		File file = new File(dir, key + ".tif");
+		if (!file.exists()) {
+			return null;
+		}
+		ImagePlus imp = IJ.openImage(file.getPath());
+		if (imp != null) {
+			file.setLastModified(System.currentTimeMillis()); // LRU
+		}
+		return imp;
+	}
+
+	private void store(String key, ImagePlus imp) throws IOException {
+		File file = new File(dir, key + ".tif");
+		if (file.exists()) {
+			return;
+		}
+		dir.mkdirs();
+		File tmp = File.createTempFile(key, ".tmp", dir);
+		if (!HeadlessProcessing.save(imp, tmp.getPath())) {
+			tmp.delete();
+			throw new IOException("could not write " + file.getName());
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		evict();
+	}
+
+	/**
+	 * Deletes least recently used projections until the cache fits its budget.
+	 */
+	private synchronized void evict() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".tif"));
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < files.length && total > budgetBytes; i++) {
+			long size = files[i].length();
+			if (files[i].delete()) {
+				total -= size;
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package area_selector_ciliaQ;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Z-projections of a grayscale stack computed in a single pass over the source
+ * pixel arrays, without duplicating the stack. Every slice is fetched once
+ * (so virtual stacks are read only once), the rows of a slice are accumulated
+ * in parallel. RGB stacks are projected by ImageJ's ZProjector.
+ *
+ * @author Sebastian Rassmann
+ */
+public class Projector {
+
+	/** projection methods, can be combined with | */
+	public static final int MAX = 1, SUM = 2, MEAN = 4, SD = 8;
+
+	private final int width, height, methods;
+	private float[] max;
+	private double[] sum, sumSq;
+	private int nSlices = 0;
+
+	private Projector(int width, int height, int methods) {
+		this.width = width;
+		this.height = height;
+		this.methods = methods;
+		if ((methods & MAX) != 0) {
+			max = new float[width * height];
+			Arrays.fill(max, Float.NEGATIVE_INFINITY);
+		}
+		if ((methods & (SUM | MEAN | SD)) != 0) {
+			sum = new double[width * height];
+		}
+		if ((methods & SD) != 0) {
+			sumSq = new double[width * height];
+		}
+	}
+
+	/**
+	 * Max intensity projection with the bit depth of the stack.
+	 */
+	public static ImageProcessor maxProjection(ImageStack stack) {
+		return project(stack, MAX)[0];
+	}
+
+	/**
+	 * Computes the requested projections in one pass.
+	 *
+	 * @param methods combination of {@link #MAX}, {@link #SUM}, {@link #MEAN} and
+	 *                {@link #SD}
+	 * @return projections in the order max, sum, mean, sd - null if not requested.
+	 *         Max keeps the bit depth of the stack, all others are 32-bit (RGB
+	 *         for RGB stacks).
+	 */
+	public static ImageProcessor[] project(ImageStack stack, int methods) {
+		Projector p = new Projector(stack.getWidth(), stack.getHeight(), methods);
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int grain = Math.max(16, p.height / (4 * pool.getParallelism()));
+		Object type = null; // pixel array of the first slice
+		for (int s = 1; s <= stack.getSize(); s++) {
+			Object pixels = stack.getPixels(s);
+			if (s == 1 && pixels instanceof int[]) {
+				return zProject(stack, methods);
+			}
+			if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[])
+					|| (type != null && pixels.getClass() != type.getClass())) {
+				throw new IllegalArgumentException("projection requires a grayscale stack of one type");
+			}
+			if (type == null) {
+				type = pixels;
+			}
+			pool.invoke(p.new RowTask(pixels, 0, p.height, grain));
+			p.nSlices++;
+		}
+		return p.results(type);
+	}
+
+	/**
+	 * Projections of an RGB stack by ImageJ's "Z Project...".
+	 */
+	private static ImageProcessor[] zProject(ImageStack stack, int methods) {
+		int[] flags = { MAX, SUM, MEAN, SD };
+		int[] zMethods = { ZProjector.MAX_METHOD, ZProjector.SUM_METHOD, ZProjector.AVG_METHOD,
+				ZProjector.SD_METHOD };
+		ImageProcessor[] results = new ImageProcessor[4];
+		ImagePlus imp = new ImagePlus("", stack);
+		for (int i = 0; i < flags.length; i++) {
+			if ((methods & flags[i]) != 0) {
+				ZProjector projector = new ZProjector(imp);
+				projector.setMethod(zMethods[i]);
+				projector.doProjection();
+				results[i] = projector.getProjection().getProcessor();
+			}
+		}
+		return results;
+	}
+
+	private ImageProcessor[] results(Object type) {
+		ImageProcessor[] results = new ImageProcessor[4];
+		int n = width * height;
+		if (max != null) {
+			if (type instanceof byte[]) {
+				byte[] px = new byte[n];
+				for (int i = 0; i < n; i++) px[i] = (byte) max[i];
+				results[0] = new ByteProcessor(width, height, px, null);
+			} else if (type instanceof short[]) {
+				short[] px = new short[n];
+				for (int i = 0; i < n; i++) px[i] = (short) max[i];
+				results[0] = new ShortProcessor(width, height, px, null);
+			} else {
+				results[0] = new FloatProcessor(width, height, max);
+			}
+		}
+		if ((methods & SUM) != 0) {
+			float[] px = new float[n];
+			for (int i = 0; i < n; i++) px[i] = (float) sum[i];
+			results[1] = new FloatProcessor(width, height, px);
+		}
+		if ((methods & MEAN) != 0) {
+			float[] px = new float[n];
+			for (int i = 0; i < n; i++) px[i] = (float) (sum[i] / nSlices);
+			results[2] = new FloatProcessor(width, height, px);
+		}
+		if ((methods & SD) != 0) {
+			float[] px = new float[n];
+			if (nSlices > 1) {
+				for (int i = 0; i < n; i++) {
+					double var = (sumSq[i] - sum[i] * sum[i] / nSlices) / (nSlices - 1);
+					px[i] = var > 0 ? (float) Math.sqrt(var) : 0f;
+				}
+			}
+			results[3] = new FloatProcessor(width, height, px);
+		}
+		for (ImageProcessor ip : results) {
+			if (ip != null) ip.resetMinAndMax();
+		}
+		return results;
+	}
+
+	private void accumulate(byte[] pixels, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int v = pixels[i] & 0xff;
+			if (max != null && v > max[i]) max[i] = v;
+			if (sum != null) sum[i] += v;
+			if (sumSq != null) sumSq[i] += (double) v * v;
+		}
+	}
+
+	private void accumulate(short[] pixels, int from, int to) {
+		if (sum == null) { // max only
+			for (int i = from; i < to; i++) {
+				int v = pixels[i] & 0xffff;
+				if (v > max[i]) max[i] = v;
+			}
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			int v = pixels[i] & 0xffff;
+			if (max != null && v > max[i]) max[i] = v;
+			sum[i] += v;
+			if (sumSq != null) sumSq[i] += (double) v * v;
+		}
+	}
+
+	private void accumulate(float[] pixels, int from, int to) {
+		for (int i = from; i < to; i++) {
+			float v = pixels[i];
+			if (max != null && v > max[i]) max[i] = v;
+			if (sum != null) sum[i] += v;
+			if (sumSq != null) sumSq[i] += (double) v * v;
+		}
+	}
+
+	/**
+	 * Accumulates the rows [from, to) of one slice.
+	 */
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Object pixels;
+		private final int from, to, grain;
+
+		RowTask(Object pixels, int from, int to, int grain) {
+			this.pixels = pixels;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				int start = from * width, end = to * width;
+				if (pixels instanceof byte[]) {
+					accumulate((byte[]) pixels, start, end);
+				} else if (pixels instanceof short[]) {
+					accumulate((short[]) pixels, start, end);
+				} else {
+					accumulate((float[]) pixels, start, end);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new RowTask(pixels, from, mid, grain), new RowTask(pixels, mid, to, grain));
+		}
+	}
+}
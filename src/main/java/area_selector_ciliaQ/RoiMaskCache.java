@@ -0,0 +1,166 @@
+package area_selector_ciliaQ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+
+/**
+ * Compiled form of a ROI set, stored next to its _Rois.zip as _Rois.mask: the
+ * rasterized union of all ROIs as {@link SpanMask}, its outline for the
+ * z-projection overlay and the number of ROIs in the set. The file records
+ * size, modification time and content hash of the zip it was compiled from and
+ * the image size it was rasterized for, a stale or foreign mask is ignored and
+ * the zip is decoded again.
+ *
+ * @author Sebastian Rassmann
+ */
+public class RoiMaskCache {
+
+	private static final int MAGIC = 0x41534d4b; // "ASMK"
+	private static final int VERSION = 1;
+
+	/**
+	 * ROI set decoded from a compiled mask or from the zip.
+	 */
+	static class CompiledRois {
+		final int roiCount;
+		final Roi combined;
+		final SpanMask mask;
+
+		CompiledRois(int roiCount, Roi combined, SpanMask mask) {
+			this.roiCount = roiCount;
+			this.combined = combined;
+			this.mask = mask;
+		}
+	}
+
+	/**
+	 * @return location of the compiled mask of a _Rois.zip
+	 */
+	static File maskFile(File roisFile) {
+		String path = roisFile.getPath();
+		return new File((path.endsWith(".zip") ? path.substring(0, path.length() - 4) : path) + ".mask");
+	}
+
+	/**
+	 * Reads the compiled mask of the ROI set if it is up to date, otherwise
+	 * decodes, combines and rasterizes the zip and stores the result for the next
+	 * run. A mask that can't be written (e.g. read-only input dir) is only used
+	 * for this run.
+	 *
+	 * @throws IOException if the zip can't be read or contains no ROI
+	 */
+	static CompiledRois load(File roisFile, int width, int height) throws IOException {
+		File maskFile = maskFile(roisFile);
+		CompiledRois compiled = read(maskFile, roisFile, width, height);
+		if (compiled != null) {
+			return compiled;
+		}
+		Roi[] rois;
+		try {
+			rois = HeadlessProcessing.loadRois(roisFile);
+		} catch (IOException e) {
+			throw new IOException("could not read ROI set " + roisFile.getName() + " (" + e.getMessage() + ")");
+		}
+		if (rois.length == 0) { // no selection made
+			throw new IOException("ROI set " + roisFile.getName() + " is empty");
+		}
+		SpanMask mask = SpanMask.fromRois(rois, width, height);
+		Roi combined = rois.length == 1 ? rois[0] : mask.toRoi(); // outline only needed for the overlay
+		compiled = new CompiledRois(rois.length, combined, mask);
+		try {
+			write(maskFile, roisFile, compiled);
+		} catch (IOException e) {
+			maskFile.delete();
+		}
+		return compiled;
+	}
+
+	/**
+	 * @return the compiled ROI set or null if the file is missing, unreadable or
+	 *         does not belong to the zip / image size
+	 */
+	private static CompiledRois read(File maskFile, File roisFile, int width, int height) {
+		if (!maskFile.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new InflaterInputStream(new FileInputStream(maskFile))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long size = in.readLong(), mtime = in.readLong();
+			String hash = in.readUTF();
+			if (size != roisFile.length()
+					|| (mtime != roisFile.lastModified() && !hash.equals(FileHashes.contentHash(roisFile)))) {
+				return null;
+			}
+			if (in.readInt() != width || in.readInt() != height) {
+				return null;
+			}
+			int roiCount = in.readInt();
+			byte[] roiBytes = new byte[in.readInt()];
+			in.readFully(roiBytes);
+			Roi combined = new RoiDecoder(roiBytes, "combined").getRoi();
+			if (combined == null) {
+				return null;
+			}
+			int[] rowIndex = new int[height + 1];
+			for (int y = 1; y <= height; y++) {
+				rowIndex[y] = rowIndex[y - 1] + 2 * in.readInt(); // stored as spans per row
+			}
+			int[] spans = new int[rowIndex[height]];
+			for (int i = 0; i < spans.length; i++) {
+				spans[i] = in.readInt();
+			}
+			return new CompiledRois(roiCount, combined, new SpanMask(width, height, rowIndex, spans));
+		} catch (IOException e) {
+			return null; // truncated or corrupt, compile again
+		}
+	}
+
+	private static void write(File maskFile, File roisFile, CompiledRois compiled) throws IOException {
+		byte[] roiBytes = compiled.combined != null ? RoiEncoder.saveAsByteArray(compiled.combined) : null;
+		if (roiBytes == null) {
+			throw new IOException("ROI can't be encoded");
+		}
+		SpanMask mask = compiled.mask;
+		File tmp = new File(maskFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(tmp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(roisFile.length());
+			out.writeLong(roisFile.lastModified());
+			out.writeUTF(FileHashes.contentHash(roisFile));
+			out.writeInt(mask.width);
+			out.writeInt(mask.height);
+			out.writeInt(compiled.roiCount);
+			out.writeInt(roiBytes.length);
+			out.write(roiBytes);
+			for (int y = 0; y < mask.height; y++) {
+				out.writeInt((mask.rowIndex[y + 1] - mask.rowIndex[y]) / 2);
+			}
+			for (int i = 0; i < mask.spans.length; i++) {
+				out.writeInt(mask.spans[i]);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), maskFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
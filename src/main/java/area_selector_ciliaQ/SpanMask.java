@@ -0,0 +1,296 @@
+package area_selector_ciliaQ;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Binary mask of an image plane stored as run-length encoded scanlines: for
+ * every row the [start, end) spans of pixels inside the ROI. The ROI is
+ * rasterized once; clearing then zeroes the gaps between the spans directly
+ * on the pixel arrays of every slice.
+ *
+ * @author Sebastian Rassmann
+ */
+public class SpanMask {
+
+	final int width, height;
+	/** spans of row y are spans[rowIndex[y]] .. spans[rowIndex[y + 1] - 1] */
+	final int[] rowIndex;
+	/** flattened start / end (exclusive) pairs, sorted per row */
+	final int[] spans;
+
+	SpanMask(int width, int height, int[] rowIndex, int[] spans) {
+		this.width = width;
+		this.height = height;
+		this.rowIndex = rowIndex;
+		this.spans = spans;
+	}
+
+	/**
+	 * Rasterizes the roi for an image of the given size. Parts of the roi outside
+	 * of the image are ignored.
+	 */
+	public static SpanMask fromRoi(Roi roi, int width, int height) {
+		Rectangle bounds = roi.getBounds();
+		ImageProcessor mask = roi.getMask(); // null for rectangles
+		byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+
+		int[] rowIndex = new int[height + 1];
+		int[] spans = new int[64];
+		int n = 0;
+		for (int y = 0; y < height; y++) {
+			rowIndex[y] = n;
+			int my = y - bounds.y;
+			if (my < 0 || my >= bounds.height) {
+				continue;
+			}
+			int x = 0;
+			while (x < bounds.width) {
+				while (x < bounds.width && maskPixels != null && maskPixels[my * bounds.width + x] == 0) {
+					x++;
+				}
+				int start = x;
+				while (x < bounds.width && (maskPixels == null || maskPixels[my * bounds.width + x] != 0)) {
+					x++;
+				}
+				int s = Math.max(0, start + bounds.x), e = Math.min(width, x + bounds.x);
+				if (e > s) {
+					if (n + 2 > spans.length) {
+						spans = Arrays.copyOf(spans, spans.length * 2);
+					}
+					spans[n++] = s;
+					spans[n++] = e;
+				}
+			}
+		}
+		rowIndex[height] = n;
+		return new SpanMask(width, height, rowIndex, Arrays.copyOf(spans, n));
+	}
+
+	/**
+	 * Raster equivalent of RoiManager "Combine": rasterizes the rois in parallel
+	 * and ORs their span lists, instead of the geometric union of ShapeRois whose
+	 * cost grows with the number and complexity of the outlines.
+	 */
+	public static SpanMask fromRois(Roi[] rois, int width, int height) {
+		if (rois.length == 0) {
+			return new SpanMask(width, height, new int[height + 1], new int[0]);
+		}
+		return ForkJoinPool.commonPool().invoke(new UnionTask(rois, 0, rois.length, width, height));
+	}
+
+	/**
+	 * @return mask of all pixels inside of a or b, masks must have the same size
+	 */
+	public static SpanMask union(SpanMask a, SpanMask b) {
+		if (a.width != b.width || a.height != b.height) {
+			throw new IllegalArgumentException("masks differ in size");
+		}
+		int[] rowIndex = new int[a.height + 1];
+		int[] spans = new int[a.spans.length + b.spans.length];
+		int n = 0;
+		for (int y = 0; y < a.height; y++) {
+			rowIndex[y] = n;
+			int i = a.rowIndex[y], iEnd = a.rowIndex[y + 1];
+			int j = b.rowIndex[y], jEnd = b.rowIndex[y + 1];
+			int rowStart = n;
+			while (i < iEnd || j < jEnd) {
+				int s, e; // next span by start
+				if (j >= jEnd || (i < iEnd && a.spans[i] <= b.spans[j])) {
+					s = a.spans[i];
+					e = a.spans[i + 1];
+					i += 2;
+				} else {
+					s = b.spans[j];
+					e = b.spans[j + 1];
+					j += 2;
+				}
+				if (n > rowStart && s <= spans[n - 1]) { // overlaps or touches the previous span
+					spans[n - 1] = Math.max(spans[n - 1], e);
+				} else {
+					spans[n++] = s;
+					spans[n++] = e;
+				}
+			}
+		}
+		rowIndex[a.height] = n;
+		return new SpanMask(a.width, a.height, rowIndex, Arrays.copyOf(spans, n));
+	}
+
+	/**
+	 * @return bounding box of the pixels inside the mask or null if it is empty
+	 */
+	public Rectangle getBounds() {
+		int minX = width, maxX = 0, minY = -1, maxY = -1;
+		for (int y = 0; y < height; y++) {
+			if (rowIndex[y + 1] > rowIndex[y]) {
+				minX = Math.min(minX, spans[rowIndex[y]]);
+				maxX = Math.max(maxX, spans[rowIndex[y + 1] - 1]);
+				if (minY < 0) {
+					minY = y;
+				}
+				maxY = y;
+			}
+		}
+		return minY < 0 ? null : new Rectangle(minX, minY, maxX - minX, maxY - minY + 1);
+	}
+
+	/**
+	 * Traces the outline of the mask, e.g. to show it as selection.
+	 *
+	 * @return composite selection of the mask or null if it is empty
+	 */
+	public Roi toRoi() {
+		byte[] pixels = new byte[width * height];
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			for (int i = rowIndex[y]; i < rowIndex[y + 1]; i += 2) {
+				Arrays.fill(pixels, offset + spans[i], offset + spans[i + 1], (byte) 255);
+			}
+		}
+		ByteProcessor ip = new ByteProcessor(width, height, pixels, null);
+		ip.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return new ThresholdToSelection().convert(ip);
+	}
+
+	/**
+	 * Sets every pixel outside of the mask to 0 in all slices, slices are
+	 * processed in parallel. The stack must hold its pixels in memory (no virtual
+	 * stack) and match the mask size.
+	 */
+	public void clearOutside(ImageStack stack) {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int grain = Math.max(1, stack.getSize() / (4 * pool.getParallelism()));
+		pool.invoke(new ClearTask(stack, 1, stack.getSize() + 1, grain));
+	}
+
+	/**
+	 * Sets every pixel outside of the mask to 0.
+	 */
+	public void clearOutside(ImageProcessor ip) {
+		clearOutside(ip.getPixels());
+	}
+
+	void clearOutside(Object pixels) {
+		if (pixels instanceof byte[]) {
+			clear((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			clear((short[]) pixels);
+		} else if (pixels instanceof float[]) {
+			clear((float[]) pixels);
+		} else if (pixels instanceof int[]) {
+			clear((int[]) pixels);
+		} else {
+			throw new IllegalArgumentException("unsupported pixel type " + pixels);
+		}
+	}
+
+	private void clear(byte[] pixels) {
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			int x = 0;
+			for (int i = rowIndex[y]; i < rowIndex[y + 1]; i += 2) {
+				Arrays.fill(pixels, offset + x, offset + spans[i], (byte) 0);
+				x = spans[i + 1];
+			}
+			Arrays.fill(pixels, offset + x, offset + width, (byte) 0);
+		}
+	}
+
+	private void clear(short[] pixels) {
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			int x = 0;
+			for (int i = rowIndex[y]; i < rowIndex[y + 1]; i += 2) {
+				Arrays.fill(pixels, offset + x, offset + spans[i], (short) 0);
+				x = spans[i + 1];
+			}
+			Arrays.fill(pixels, offset + x, offset + width, (short) 0);
+		}
+	}
+
+	private void clear(float[] pixels) {
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			int x = 0;
+			for (int i = rowIndex[y]; i < rowIndex[y + 1]; i += 2) {
+				Arrays.fill(pixels, offset + x, offset + spans[i], 0f);
+				x = spans[i + 1];
+			}
+			Arrays.fill(pixels, offset + x, offset + width, 0f);
+		}
+	}
+
+	private void clear(int[] pixels) {
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			int x = 0;
+			for (int i = rowIndex[y]; i < rowIndex[y + 1]; i += 2) {
+				Arrays.fill(pixels, offset + x, offset + spans[i], 0);
+				x = spans[i + 1];
+			}
+			Arrays.fill(pixels, offset + x, offset + width, 0);
+		}
+	}
+
+	/**
+	 * Rasterizes the rois [from, to) and unites both halves of the range.
+	 */
+	private static class UnionTask extends RecursiveTask<SpanMask> {
+		private static final long serialVersionUID = 1L;
+		private final Roi[] rois;
+		private final int from, to, width, height;
+
+		UnionTask(Roi[] rois, int from, int to, int width, int height) {
+			this.rois = rois;
+			this.from = from;
+			this.to = to;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		protected SpanMask compute() {
+			if (to - from == 1) {
+				return fromRoi(rois[from], width, height);
+			}
+			int mid = (from + to) >>> 1;
+			UnionTask left = new UnionTask(rois, from, mid, width, height);
+			left.fork();
+			SpanMask right = new UnionTask(rois, mid, to, width, height).compute();
+			return union(left.join(), right);
+		}
+	}
+
+	/**
+	 * Splits the slice range [from, to) until it is at most grain slices long.
+	 */
+	private class ClearTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ImageStack stack;
+		private final int from, to, grain;
+
+		ClearTask(ImageStack stack, int from, int to, int grain) {
+			this.stack = stack;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				for (int s = from; s < to; s++) {
+					clearOutside(stack.getPixels(s));
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ClearTask(stack, from, mid, grain), new ClearTask(stack, mid, to, grain));
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Wall-clock time spent per processing stage and bytes read / written, per task
+ * and summed over the run. The totals are shown live in the
+ * {@link ProgressDialog}, the per-task numbers are written as CSV and JSON
+ * report at the end of the run. Stages of a task may be timed on different
+ * threads (prefetching, pipeline stages, writer).
+ *
+ * @author Sebastian Rassmann
+ */
+public class StageTimer {
+
+	static final int OPEN_MAIN = 0, OPEN_HELPER = 1, MERGE = 2, PROJECT = 3, WAIT_FOR_USER = 4, ROIS = 5,
+			CLEAR = 6, SAVE_EDITED = 7, SAVE_PROJECTION = 8;
+	static final String[] STAGES = { "open main", "open helper", "merge", "project", "wait for user",
+			"ROI load/combine", "clear", "save edited", "save projection" };
+	/** column names / JSON keys */
+	static final String[] KEYS = { "openMain", "openHelper", "merge", "project", "waitForUser", "rois", "clear",
+			"saveEdited", "saveProjection" };
+
+	/**
+	 * Timings of one task.
+	 */
+	static class Task {
+		final String path, name;
+		final long[] nanos = new long[STAGES.length];
+		long bytesRead = 0, bytesWritten = 0;
+		private final StageTimer owner;
+
+		private Task(StageTimer owner, String path, String name) {
+			this.owner = owner;
+			this.path = path;
+			this.name = name;
+		}
+
+		/**
+		 * @return start time to be passed to {@link #stop(int, long)}
+		 */
+		long start() {
+			return System.nanoTime();
+		}
+
+		void stop(int stage, long start) {
+			long elapsed = System.nanoTime() - start;
+			synchronized (this) {
+				nanos[stage] += elapsed;
+			}
+			if (owner != null) {
+				owner.add(stage, elapsed, 0, 0);
+			}
+		}
+
+		/**
+		 * Counts the size of a file that was read.
+		 */
+		void read(String file) {
+			long bytes = new File(file).length();
+			synchronized (this) {
+				bytesRead += bytes;
+			}
+			if (owner != null) {
+				owner.add(-1, 0, bytes, 0);
+			}
+		}
+
+		/**
+		 * Counts the size of a file that was written.
+		 */
+		void written(String file) {
+			long bytes = new File(file).length();
+			synchronized (this) {
+				bytesWritten += bytes;
+			}
+			if (owner != null) {
+				owner.add(-1, 0, 0, bytes);
+			}
+		}
+
+		synchronized long totalNanos() {
+			long total = 0;
+			for (long n : nanos) {
+				total += n;
+			}
+			return total;
+		}
+	}
+
+	private final ProgressDialog pD;
+	private final List<Task> tasks = new ArrayList<Task>();
+	private final long[] totals = new long[STAGES.length];
+	private long totalRead = 0, totalWritten = 0;
+
+	/**
+	 * @param pD shows the running totals, may be null
+	 */
+	public StageTimer(ProgressDialog pD) {
+		this.pD = pD;
+	}
+
+	/**
+	 * @param timer may be null
+	 * @return timings of a new task, registered with the timer if there is one
+	 */
+	static Task task(StageTimer timer, String path, String name) {
+		if (timer == null) {
+			return new Task(null, path, name);
+		}
+		Task task = new Task(timer, path, name);
+		synchronized (timer) {
+			timer.tasks.add(task);
+		}
+		return task;
+	}
+
+	private void add(int stage, long nanos, long read, long written) {
+		String summary;
+		synchronized (this) {
+			if (stage >= 0) {
+				totals[stage] += nanos;
+			}
+			totalRead += read;
+			totalWritten += written;
+			summary = summary();
+		}
+		if (pD != null) {
+			pD.updateTimings(summary);
+		}
+	}
+
+	/**
+	 * @return time of every stage that occurred so far and the bytes read /
+	 *         written
+	 */
+	synchronized String summary() {
+		StringBuilder sb = new StringBuilder();
+		for (int s = 0; s < STAGES.length; s++) {
+			if (totals[s] > 0) {
+				sb.append(STAGES[s]).append(" ").append(String.format(Locale.ENGLISH, "%.1f s", totals[s] / 1e9))
+						.append(" | ");
+			}
+		}
+		sb.append("read ").append(megabytes(totalRead)).append(" | written ").append(megabytes(totalWritten));
+		return sb.toString();
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Writes AreaSelector_timings_&lt;date&gt;.csv and .json to the dir: one row /
+	 * object per task with the milliseconds of every stage and the bytes read and
+	 * written.
+	 *
+	 * @return the CSV file
+	 */
+	public synchronized File writeReport(String dir) throws IOException {
+		String base = "AreaSelector_timings_" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		File csv = new File(dir, base + ".csv");
+		try (PrintWriter out = writer(csv)) {
+			out.print("path,name");
+			for (String key : KEYS) {
+				out.print("," + key + "Ms");
+			}
+			out.println(",totalMs,bytesRead,bytesWritten");
+			for (Task task : tasks) {
+				synchronized (task) {
+					out.print(csvField(task.path) + "," + csvField(task.name));
+					for (long n : task.nanos) {
+						out.print("," + millis(n));
+					}
+					out.println("," + millis(task.totalNanos()) + "," + task.bytesRead + "," + task.bytesWritten);
+				}
+			}
+		}
+		try (PrintWriter out = writer(new File(dir, base + ".json"))) {
+			out.println("{");
+			out.println("  \"totalsMs\": " + stagesJson(totals) + ",");
+			out.println("  \"bytesRead\": " + totalRead + ",");
+			out.println("  \"bytesWritten\": " + totalWritten + ",");
+			out.println("  \"tasks\": [");
+			for (int i = 0; i < tasks.size(); i++) {
+				Task task = tasks.get(i);
+				synchronized (task) {
+					out.print("    {\"path\": " + jsonString(task.path) + ", \"name\": " + jsonString(task.name)
+							+ ", \"stagesMs\": " + stagesJson(task.nanos) + ", \"totalMs\": "
+							+ millis(task.totalNanos()) + ", \"bytesRead\": " + task.bytesRead
+							+ ", \"bytesWritten\": " + task.bytesWritten + "}");
+				}
+				out.println(i < tasks.size() - 1 ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+		return csv;
+	}
+
+	private static PrintWriter writer(File file) throws IOException {
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+	}
+
+	private static String stagesJson(long[] nanos) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int s = 0; s < KEYS.length; s++) {
+			sb.append(s > 0 ? ", " : "").append("\"").append(KEYS[s]).append("\": ").append(millis(nanos[s]));
+		}
+		return sb.append("}").toString();
+	}
+
+	private static String csvField(String s) {
+		return s.contains(",") || s.contains("\"") ? "\"" + s.replace("\"", "\"\"") + "\"" : s;
+	}
+
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append("\"").toString();
+	}
+}
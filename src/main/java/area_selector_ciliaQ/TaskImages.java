@@ -0,0 +1,137 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Images required to draw the ROIs of one task: main channel, helper channel,
+ * their merge and the merged max projection. Created without opening windows,
+ * so a set can be loaded in the background (see {@link ImagePrefetcher}). If
+ * the projection is found in the {@link ProjectionCache}, the helper channel is
+ * opened virtually and only read for the slices shown in the merge.
+ *
+ * @author Sebastian Rassmann
+ */
+class TaskImages {
+
+	ImagePlus c1, c2, merged, zProj;
+	StageTimer.Task timing;
+
+	/**
+	 * Opens and projects the main channel path/name and its helper channel.
+	 *
+	 * @param timing receives the time spent per stage, kept with the images
+	 * @throws IOException if a channel cannot be opened or channels don't match
+	 */
+	static TaskImages load(String path, String name, ProcessSettings pS, StageTimer.Task timing) throws IOException {
+		return load(path, name, pS, timing, null);
+	}
+
+	/**
+	 * @param cachedProjection receives the projection if it is cached, before the
+	 *                         channels are opened - e.g. to show it at once; may
+	 *                         be null
+	 */
+	static TaskImages load(String path, String name, ProcessSettings pS, StageTimer.Task timing,
+			Consumer<ImagePlus> cachedProjection) throws IOException {
+		TaskImages images = new TaskImages();
+		images.timing = timing;
+		String c2Name = pS.helperName(name);
+		File mainFile = new File(path + name), helperFile = new File(path + c2Name);
+		ProjectionCache cache = ProjectionCache.forSettings(pS);
+		long start = timing.start();
+		if (cache != null) {
+			images.zProj = cache.cached(mainFile, helperFile, pS);
+			if (images.zProj != null) {
+				images.zProj.setTitle("MAX_" + name);
+				if (cachedProjection != null) {
+					cachedProjection.accept(images.zProj);
+				}
+			}
+		}
+		timing.stop(StageTimer.PROJECT, start);
+		start = timing.start();
+		images.c1 = pS.openImage(path + name, pS.mainChannelToRead());
+		if (images.c1 == null) {
+			images.close();
+			throw new IOException("could not open main channel");
+		}
+		timing.stop(StageTimer.OPEN_MAIN, start);
+		timing.read(path + name);
+		if (images.zProj != null && (images.zProj.getWidth() != images.c1.getWidth()
+				|| images.zProj.getHeight() != images.c1.getHeight())) {
+			images.close();
+			throw new IOException("cached projection and main channel differ in size");
+		}
+		start = timing.start();
+		// channel used to determine selection, only read for the shown slices if it needs no projection
+		boolean virtual = false;
+		if (images.zProj != null) {
+			images.c2 = pS.openVirtualImage(path + c2Name, pS.helperChannelToRead());
+			virtual = images.c2 != null;
+		}
+		if (!virtual) {
+			images.c2 = pS.openImage(path + c2Name, pS.helperChannelToRead());
+		}
+		if (images.c2 == null) {
+			images.close();
+			throw new IOException("could not open helper channel " + c2Name);
+		}
+		if (images.c1.getWidth() != images.c2.getWidth() || images.c1.getHeight() != images.c2.getHeight()
+				|| images.c1.getStackSize() != images.c2.getStackSize()) {
+			images.close();
+			throw new IOException("main and helper channel differ in size");
+		}
+		timing.stop(StageTimer.OPEN_HELPER, start);
+		if (!virtual) {
+			timing.read(path + c2Name);
+		}
+		start = timing.start();
+		images.merged = virtual ? MergedStack.merge(images.c1, images.c2)
+				: HeadlessProcessing.mergeChannels(images.c1, images.c2);
+		timing.stop(StageTimer.MERGE, start);
+		start = timing.start();
+		if (images.zProj != null) {
+			images.zProj.setTitle("MAX_" + images.c1.getTitle());
+		} else {
+			ImageProcessor helperProjection = Projector.maxProjection(images.c2.getStack());
+			images.zProj = HeadlessProcessing.mergeProjections(Projector.maxProjection(images.c1.getStack()),
+					helperProjection, "MAX_" + images.c1.getTitle(), images.c1);
+			if (cache != null) {
+				cache.put(mainFile, helperFile, pS, helperProjection, images.zProj);
+			}
+		}
+		timing.stop(StageTimer.PROJECT, start);
+		return images;
+	}
+
+	/**
+	 * Waits for images loaded in the background.
+	 */
+	static TaskImages get(Future<TaskImages> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("loading failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException("loading interrupted");
+		}
+	}
+
+	void close() {
+		if (c1 != null) c1.close();
+		if (c2 != null) c2.close();
+		if (merged != null) merged.close();
+		if (zProj != null) zProj.close();
+		c1 = c2 = merged = zProj = null;
+	}
+}
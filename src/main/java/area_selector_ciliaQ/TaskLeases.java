@@ -0,0 +1,232 @@
+package area_selector_ciliaQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+
+/**
+ * Lock files through which processes on different machines claim the tasks of
+ * one batch on a shared file system. A task is claimed by atomically creating
+ * &lt;task&gt;.lock.0 in the claims dir of its output dir; the holder renews
+ * the lease by touching the file while it works on the task. A lock that was
+ * not renewed for longer than the lease (e.g. the process was killed) is stale
+ * and taken over by atomically creating the next generation
+ * &lt;task&gt;.lock.1 (2, ...) - only one process can create it, and no
+ * process renames or deletes a lock it did not create. A holder whose lock was
+ * superseded has lost the lease and records no result. Finished tasks leave
+ * &lt;task&gt;.done, failed ones &lt;task&gt;.failed (with the error), both are
+ * not claimed again - delete the failed marker to retry a task.
+ *
+ * Locks are only deleted by their holder once the task is finished, so the
+ * existing generations of a task are always 0 to n and the last one decides.
+ * The lease has to be well above the clock difference between the machines.
+ *
+ * @author Sebastian Rassmann
+ */
+public class TaskLeases {
+
+	static final String DIR_NAME = ".AreaSelector_claims";
+	static final String LOCK = ".lock.", DONE = ".done", FAILED = ".failed";
+
+	/**
+	 * A claimed task, renewed until {@link #complete(boolean, String)} is called.
+	 */
+	class Lease {
+		final File lock;
+		final String key, token;
+		final int generation;
+		volatile boolean lost = false;
+
+		private Lease(File lock, String key, String token, int generation) {
+			this.lock = lock;
+			this.key = key;
+			this.token = token;
+			this.generation = generation;
+		}
+
+		/**
+		 * @return true if the lock was superseded by another process, e.g. after
+		 *         this process stalled for longer than the lease
+		 */
+		boolean isLost() {
+			if (!lost && (lockFile(key, generation + 1).exists() || !token.equals(read(lock)))) {
+				lost = true;
+				IJ.log(worker + ": lease of " + key + " was taken over by another process");
+			}
+			return lost;
+		}
+
+		private void renew() {
+			if (!isLost()) {
+				lock.setLastModified(System.currentTimeMillis());
+			}
+		}
+
+		/**
+		 * Records the outcome and releases the lock - unless the lease was lost, then
+		 * the new holder records the task.
+		 *
+		 * @param message error written to the failed marker, ignored on success
+		 * @return false if the lease was lost and nothing was recorded
+		 */
+		boolean complete(boolean success, String message) {
+			held.remove(key);
+			if (isLost()) {
+				return false;
+			}
+			try {
+				writeMarker(new File(dir, key + (success ? DONE : FAILED)),
+						worker + (success ? "" : "\t" + message) + "\n");
+			} catch (IOException e) {
+				IJ.log(worker + ": could not mark " + key + " as " + (success ? "done" : "failed") + " ("
+						+ e.getMessage() + ")");
+			}
+			lock.delete(); // own lock, the last generation
+			return true;
+		}
+	}
+
+	private final File dir;
+	private final String worker;
+	private final long leaseMillis;
+	private final Map<String, Lease> held = new ConcurrentHashMap<String, Lease>();
+	private final ScheduledExecutorService heartbeat;
+
+	/**
+	 * @param outputDir   output dir of the tasks, the claims dir is created in it
+	 * @param worker      name of this process in the lock files, e.g. host and pid
+	 * @param leaseMillis time after which a lock that was not renewed is stale
+	 */
+	public TaskLeases(File outputDir, String worker, long leaseMillis) throws IOException {
+		this.dir = new File(outputDir, DIR_NAME);
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("could not create " + dir);
+		}
+		this.worker = worker;
+		this.leaseMillis = leaseMillis;
+		this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "AreaSelector-lease-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1, leaseMillis / 4);
+		heartbeat.scheduleAtFixedRate(() -> {
+			for (Lease lease : held.values()) {
+				lease.renew();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return file name of the task's lock and markers, unique per input file
+	 */
+	static String key(String path, String name) {
+		String base = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+		return base.replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+				+ Integer.toHexString(new File(path + name).getAbsolutePath().hashCode());
+	}
+
+	/**
+	 * @return true if the task is done or failed
+	 */
+	boolean isFinished(String key) {
+		return new File(dir, key + DONE).exists() || new File(dir, key + FAILED).exists();
+	}
+
+	/**
+	 * @return true if the task was completed successfully
+	 */
+	boolean isDone(String key) {
+		return new File(dir, key + DONE).exists();
+	}
+
+	/**
+	 * Claims the task unless it is finished or held by a live lease.
+	 *
+	 * @return the lease or null if the task is not available
+	 */
+	Lease tryClaim(String key) {
+		if (isFinished(key)) {
+			return null;
+		}
+		int last = -1; // last existing generation
+		while (lockFile(key, last + 1).exists()) {
+			last++;
+		}
+		if (last >= 0) {
+			long modified = lockFile(key, last).lastModified();
+			if (modified == 0 || lockFile(key, last + 1).exists()) {
+				return null; // changed meanwhile, try again later
+			}
+			if (System.currentTimeMillis() - modified < leaseMillis) {
+				return null; // live
+			}
+		}
+		int generation = last + 1;
+		File lock = lockFile(key, generation);
+		String token = worker + "\t" + UUID.randomUUID() + "\n";
+		try {
+			Files.write(lock.toPath(), token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+		} catch (FileAlreadyExistsException e) {
+			return null; // claimed or taken over by another process
+		} catch (IOException e) {
+			IJ.log(worker + ": could not claim " + key + " (" + e.getMessage() + ")");
+			return null;
+		}
+		if (isFinished(key)) { // finished by another process since the check above
+			lock.delete(); // own lock, the last generation
+			return null;
+		}
+		if (generation > 0) {
+			String owner = read(lockFile(key, last));
+			IJ.log(worker + ": took over stale lease of " + key
+					+ (owner == null ? "" : " held by " + owner.split("\t")[0]));
+		}
+		Lease lease = new Lease(lock, key, token, generation);
+		held.put(key, lease);
+		return lease;
+	}
+
+	private File lockFile(String key, int generation) {
+		return new File(dir, key + LOCK + generation);
+	}
+
+	private void writeMarker(File marker, String content) throws IOException {
+		File tmp = new File(dir, marker.getName() + ".tmp-" + UUID.randomUUID());
+		Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+		Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return content of the file or null if it can't be read
+	 */
+	private static String read(File file) {
+		try {
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stops renewing; leases still held become stale after the lease time.
+	 */
+	public void shutdown() {
+		heartbeat.shutdownNow();
+	}
+}
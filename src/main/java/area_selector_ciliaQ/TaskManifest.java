@@ -0,0 +1,199 @@
+package area_selector_ciliaQ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Manifest of the tasks completed in one output directory. For every task the
+ * size and modification time of its inputs (main channel, helper channel, set
+ * of Rois and further edited channels) as well as the settings determining the
+ * output are recorded once its results are on disk. A later run can skip tasks
+ * whose inputs and settings did not change and whose outputs still exist, so an
+ * interrupted batch resumes where it stopped.
+ *
+ * Recording does not read the inputs again: a content hash is only stored if
+ * it is known already (see {@link FileHashes#knownHash(File)}) or the file is
+ * small, like a set of Rois. It lets a touched or copied input with unchanged
+ * content pass; without a hash a changed modification time means the task is
+ * processed again.
+ *
+ * The manifest is a tab separated text file, later lines of the same task
+ * replace earlier ones. Manifests are kept in memory for one run only, see
+ * {@link #releaseAll()}.
+ *
+ * @author Sebastian Rassmann
+ */
+public class TaskManifest {
+
+	static final String FILE_NAME = "AreaSelector_manifest.tsv";
+	/** inputs up to this size are hashed when recorded */
+	static final long HASH_LIMIT = 1L << 20;
+
+	private static final Map<String, TaskManifest> manifests = new HashMap<String, TaskManifest>();
+
+	private final File file;
+	private final Map<String, String[]> entries = new HashMap<String, String[]>();
+
+	private TaskManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the manifest of the output dir, loaded on first use
+	 */
+	static synchronized TaskManifest forDir(String outputDir) {
+		TaskManifest manifest = manifests.get(outputDir);
+		if (manifest == null) {
+			manifest = new TaskManifest(new File(outputDir, FILE_NAME));
+			manifest.load();
+			manifests.put(outputDir, manifest);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Drops the loaded manifests once a run ended: the next run reads them again,
+	 * so manifests edited or deleted in between take effect, and the entries of
+	 * finished batches are not kept for the rest of the session.
+	 */
+	static synchronized void releaseAll() {
+		manifests.clear();
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader br = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) { // as recorded
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length >= 11 && (fields.length - 2) % 3 == 0) {
+					entries.put(fields[0], fields);
+				} // else: truncated by a crash, ignore
+			}
+		} catch (IOException e) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return true if the task was completed with the current settings, its
+	 *         inputs are unchanged and its outputs exist
+	 */
+	synchronized boolean isUpToDate(String path, String name, String outputDir, ProcessSettings pS) {
+		String[] entry = entries.get(new File(path + name).getAbsolutePath());
+		if (entry == null || !entry[1].equals(pS.outputSignature())) {
+			return false;
+		}
+		File[] inputs = inputs(path, name, pS);
+		if (entry.length != 2 + 3 * inputs.length) {
+			return false;
+		}
+		for (int i = 0; i < inputs.length; i++) {
+			if (!matches(inputs[i], entry[2 + 3 * i], entry[3 + 3 * i], entry[4 + 3 * i])) {
+				return false;
+			}
+		}
+		return outputsExist(outputDir, name, pS);
+	}
+
+	/**
+	 * Appends the task to the manifest if its outputs exist. The line is written
+	 * through immediately, so a crash loses at most the task being recorded.
+	 */
+	synchronized void record(String path, String name, String outputDir, ProcessSettings pS) throws IOException {
+		if (!outputsExist(outputDir, name, pS)) {
+			return;
+		}
+		File[] inputs = inputs(path, name, pS);
+		String[] entry = new String[2 + 3 * inputs.length];
+		entry[0] = new File(path + name).getAbsolutePath();
+		entry[1] = pS.outputSignature();
+		for (int i = 0; i < inputs.length; i++) {
+			boolean exists = inputs[i].exists();
+			entry[2 + 3 * i] = exists ? String.valueOf(inputs[i].length()) : "-";
+			entry[3 + 3 * i] = exists ? String.valueOf(inputs[i].lastModified()) : "-";
+			entry[4 + 3 * i] = exists ? hashIfCheap(inputs[i]) : "-";
+		}
+		try (FileOutputStream fos = new FileOutputStream(file, true);
+				Writer out = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+			out.write(String.join("\t", entry) + "\n");
+			out.flush();
+			fos.getFD().sync();
+		}
+		entries.put(entry[0], entry);
+	}
+
+	/**
+	 * @return known hash of the file, hash of a small file or "-"
+	 */
+	private static String hashIfCheap(File input) throws IOException {
+		String hash = FileHashes.knownHash(input);
+		if (hash == null) {
+			hash = input.length() <= HASH_LIMIT ? FileHashes.contentHash(input) : "-";
+		}
+		return hash;
+	}
+
+	/**
+	 * main channel, helper channel, set of Rois, further edited channels
+	 */
+	private static File[] inputs(String path, String name, ProcessSettings pS) {
+		String[] targets = pS.additionalTargets(name);
+		File[] inputs = new File[3 + targets.length];
+		inputs[0] = new File(path + name);
+		inputs[1] = new File(path + pS.helperName(name));
+		inputs[2] = new File(pS.roisPath(path, name));
+		for (int i = 0; i < targets.length; i++) {
+			inputs[3 + i] = new File(path + targets[i]);
+		}
+		return inputs;
+	}
+
+	/**
+	 * Size and mtime decide quickly; if only the mtime changed (e.g. file copied
+	 * or touched), the content hash decides if one was recorded.
+	 */
+	private static boolean matches(File input, String size, String mtime, String hash) {
+		if (!input.exists()) {
+			return size.equals("-");
+		}
+		if (!size.equals(String.valueOf(input.length()))) {
+			return false;
+		}
+		if (mtime.equals(String.valueOf(input.lastModified()))) {
+			return true;
+		}
+		if (hash.equals("-")) {
+			return false;
+		}
+		try {
+			return hash.equals(FileHashes.contentHash(input));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean outputsExist(String outputDir, String name, ProcessSettings pS) {
+		String[] targets = pS.additionalTargets(name);
+		int[] channels = pS.additionalChannelsToRead();
+		for (int i = 0; i < targets.length; i++) {
+			if (!new File(pS.editedPath(outputDir, targets[i], channels[i])).exists()) {
+				return false;
+			}
+		}
+		return new File(pS.editedPath(outputDir, name)).exists()
+				&& new File(pS.zProjectionPath(outputDir, name)).exists();
+	}
+}
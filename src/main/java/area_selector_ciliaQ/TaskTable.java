@@ -0,0 +1,98 @@
+package area_selector_ciliaQ;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact list of tasks for very large batches: parent dirs are interned and
+ * referenced by index, file names are stored as UTF-8 in one shared byte
+ * array, and the state of every task takes one byte. A task thus costs the
+ * bytes of its name plus 9 bytes instead of two String objects with the full
+ * parent path. Names are decoded on access.
+ *
+ * Not thread-safe, {@link ProcessSettings} guards its table.
+ *
+ * @author Sebastian Rassmann
+ */
+public class TaskTable {
+
+	static final byte PENDING = 0, REMOVED = 1, DONE = 2, FAILED = 3;
+
+	private final ArrayList<String> dirs = new ArrayList<String>();
+	private final HashMap<String, Integer> dirIds = new HashMap<String, Integer>();
+	private int[] dirOf = new int[64];
+	/** name of task i is namePool[nameStart[i]] .. namePool[nameStart[i + 1] - 1] */
+	private int[] nameStart = new int[65];
+	private byte[] namePool = new byte[4096];
+	private byte[] states = new byte[64];
+	private int size = 0;
+
+	/**
+	 * @param dir  parent dir with last file sep
+	 * @param name file name
+	 * @return index of the task
+	 */
+	int add(String dir, String name) {
+		Integer dirId = dirIds.get(dir);
+		if (dirId == null) {
+			dirId = dirs.size();
+			dirs.add(dir);
+			dirIds.put(dir, dirId);
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (size == dirOf.length) {
+			int capacity = size + (size >> 1);
+			dirOf = Arrays.copyOf(dirOf, capacity);
+			nameStart = Arrays.copyOf(nameStart, capacity + 1);
+			states = Arrays.copyOf(states, capacity);
+		}
+		int start = nameStart[size];
+		if (start + bytes.length > namePool.length) {
+			namePool = Arrays.copyOf(namePool, Math.max(start + bytes.length, namePool.length + (namePool.length >> 1)));
+		}
+		System.arraycopy(bytes, 0, namePool, start, bytes.length);
+		dirOf[size] = dirId;
+		nameStart[size + 1] = start + bytes.length;
+		states[size] = PENDING;
+		return size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	String getName(int task) {
+		check(task);
+		return new String(namePool, nameStart[task], nameStart[task + 1] - nameStart[task], StandardCharsets.UTF_8);
+	}
+
+	String getDir(int task) {
+		check(task);
+		return dirs.get(dirOf[task]);
+	}
+
+	/**
+	 * @return number of distinct parent dirs
+	 */
+	int dirCount() {
+		return dirs.size();
+	}
+
+	byte getState(int task) {
+		check(task);
+		return states[task];
+	}
+
+	void setState(int task, byte state) {
+		check(task);
+		states[task] = state;
+	}
+
+	private void check(int task) {
+		if (task < 0 || task >= size) {
+			throw new IndexOutOfBoundsException("task " + task + " of " + size);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package area_selector_ciliaQ;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import ij.ImagePlus;
+
+/**
+ * Saves finished images on a background thread so the next task (and the
+ * user) does not wait for the disk. Submitted images are owned by the queue:
+ * they are written in submission order and flushed afterwards. The number of
+ * pending images is bounded, submitting blocks if the writer falls behind.
+ *
+ * @author Sebastian Rassmann
+ */
+public class WriteBehindQueue {
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "AreaSelector writer"));
+	private final Semaphore capacity;
+	private final ProgressDialog pD;
+	private boolean failedSinceTask = false;	// a write failed since the last afterTaskWrites, writer thread only
+
+	/**
+	 * @param pD         receives completion and failure messages, may be null
+	 * @param maxPending max number of images waiting to be written
+	 */
+	public WriteBehindQueue(ProgressDialog pD, int maxPending) {
+		this.pD = pD;
+		this.capacity = new Semaphore(Math.max(1, maxPending));
+	}
+
+	/**
+	 * Hands the image over to the writer - the caller must not modify or close it
+	 * afterwards.
+	 *
+	 * @param imp  image to save, must not be displayed
+	 * @param path output path
+	 */
+	public void submit(final ImagePlus imp, final String path) {
+		submit(imp, path, null, 0);
+	}
+
+	/**
+	 * @param timing receives the time spent writing as the given stage, may be
+	 *               null
+	 * @param stage  {@link StageTimer} stage of the write
+	 */
+	public void submit(final ImagePlus imp, final String path, final StageTimer.Task timing, final int stage) {
+		submit(imp, path, CompressedTiffWriter.NONE, timing, stage);
+	}
+
+	/**
+	 * @param compression {@link CompressedTiffWriter} compression of the file
+	 */
+	public void submit(final ImagePlus imp, final String path, final int compression, final StageTimer.Task timing,
+			final int stage) {
+		capacity.acquireUninterruptibly();
+		writer.execute(() -> {
+			try {
+				long start = System.nanoTime();
+				HeadlessProcessing.save(imp, path, compression); // successful writes are not listed
+				if (timing != null) {
+					timing.stop(stage, start);
+					timing.written(path);
+				}
+			} catch (IOException e) {
+				failedSinceTask = true;
+				report(e.getMessage(), ProgressDialog.ERROR);
+			} catch (RuntimeException e) {
+				failedSinceTask = true;
+				report("saving " + path + " failed (" + e + ")", ProgressDialog.ERROR);
+			} finally {
+				imp.flush();
+				capacity.release();
+			}
+		});
+	}
+
+	/**
+	 * Runs the action on the writer thread once all images submitted so far are
+	 * written. The action receives true if every image submitted since the
+	 * previous call was saved, i.e. all results of the task are on disk.
+	 */
+	public void afterTaskWrites(Consumer<Boolean> action) {
+		writer.execute(() -> {
+			boolean saved = !failedSinceTask;
+			failedSinceTask = false;
+			action.accept(saved);
+		});
+	}
+
+	/**
+	 * Blocks until all images submitted so far are on disk.
+	 */
+	public void flush() {
+		try {
+			writer.submit(() -> {
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the marker task can't fail
+		}
+	}
+
+	/**
+	 * Flushes and stops the writer thread.
+	 */
+	public void shutdown() {
+		flush();
+		writer.shutdown();
+	}
+
+	private void report(String message, int type) {
+		if (pD == null) {
+			if (type == ProgressDialog.ERROR) {
+				HeadlessProcessing.notifyError(null, message);
+			}
+			return;
+		}
+		synchronized (pD) {
+			pD.notifyMessage(message, type);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package area_selector_ciliaQ;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * Writes stacks with every compression and reopens them with ImageJ: pixels
+ * and calibration have to survive the round trip, for slices in one strip and
+ * slices cut into several strips.
+ *
+ * @author Sebastian Rassmann
+ */
+@RunWith(Parameterized.class)
+public class CompressedTiffWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final int compression, bitDepth, width, height, slices;
+
+	public CompressedTiffWriterTest(String name, int compression, int bitDepth, int width, int height, int slices) {
+		this.compression = compression;
+		this.bitDepth = bitDepth;
+		this.width = width;
+		this.height = height;
+		this.slices = slices;
+	}
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> parameters() {
+		int[] compressions = { CompressedTiffWriter.DEFLATE, CompressedTiffWriter.LZW,
+				CompressedTiffWriter.PACKBITS };
+		int[] bitDepths = { 8, 16, 32 };
+		// one strip per slice, several strips per slice (strips hold 64 KB) and a single slice
+		int[][] sizes = { { 40, 30, 3 }, { 301, 517, 3 }, { 257, 300, 1 } };
+		Collection<Object[]> parameters = new ArrayList<Object[]>();
+		for (int compression : compressions) {
+			for (int bitDepth : bitDepths) {
+				for (int[] size : sizes) {
+					String name = ProcessSettings.COMPRESSIONS[compression] + " " + bitDepth + "-bit " + size[0] + "x"
+							+ size[1] + "x" + size[2];
+					parameters.add(new Object[] { name, compression, bitDepth, size[0], size[1], size[2] });
+				}
+			}
+		}
+		return parameters;
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		ImagePlus imp = IJ.createImage("test", bitDepth + "-bit black", width, height, slices);
+		Random random = new Random(width * 31 + bitDepth);
+		ImageStack stack = imp.getStack();
+		for (int s = 1; s <= slices; s++) {
+			fill(stack.getPixels(s), random);
+		}
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.25;
+		cal.pixelHeight = 0.5;
+		cal.pixelDepth = 2.0;
+		cal.setUnit("micron");
+		cal.xOrigin = 12;
+		cal.yOrigin = 7;
+		imp.resetDisplayRange();
+
+		File file = folder.newFile("roundtrip.tif");
+		new CompressedTiffWriter(compression).write(imp, file.getPath());
+		ImagePlus read = IJ.openImage(file.getPath());
+
+		assertNotNull("ImageJ could not open the file", read);
+		assertEquals(bitDepth, read.getBitDepth());
+		assertEquals(width, read.getWidth());
+		assertEquals(height, read.getHeight());
+		assertEquals(slices, read.getStackSize());
+		for (int s = 1; s <= slices; s++) {
+			assertPixelsEqual("slice " + s, stack.getPixels(s), read.getStack().getPixels(s));
+		}
+		Calibration readCal = read.getCalibration();
+		assertEquals(0.25, readCal.pixelWidth, 1e-9);
+		assertEquals(0.5, readCal.pixelHeight, 1e-9);
+		if (slices > 1) {
+			assertEquals(2.0, readCal.pixelDepth, 1e-9);
+		}
+		assertTrue(readCal.getUnit().equals("micron") || readCal.getUnit().equals("µm"));
+		assertEquals(12, readCal.xOrigin, 1e-9);
+		assertEquals(7, readCal.yOrigin, 1e-9);
+	}
+
+	/**
+	 * Mostly cleared background with runs and noise, like edited stacks.
+	 */
+	private static void fill(Object pixels, Random random) {
+		if (pixels instanceof byte[]) {
+			byte[] px = (byte[]) pixels;
+			for (int i = 0; i < px.length; i++) {
+				px[i] = (byte) (random.nextInt(5) == 0 ? random.nextInt(256) : (i / 97) % 3);
+			}
+		} else if (pixels instanceof short[]) {
+			short[] px = (short[]) pixels;
+			for (int i = 0; i < px.length; i++) {
+				px[i] = (short) (random.nextInt(5) == 0 ? random.nextInt(65536) : (i / 97) % 3);
+			}
+		} else {
+			float[] px = (float[]) pixels;
+			for (int i = 0; i < px.length; i++) {
+				px[i] = random.nextInt(5) == 0 ? (float) random.nextGaussian() * 1000f : (i / 97) % 3;
+			}
+		}
+	}
+
+	private static void assertPixelsEqual(String message, Object expected, Object actual) {
+		if (expected instanceof byte[]) {
+			assertArrayEquals(message, (byte[]) expected, (byte[]) actual);
+		} else if (expected instanceof short[]) {
+			assertArrayEquals(message, (short[]) expected, (short[]) actual);
+		} else {
+			assertArrayEquals(message, (float[]) expected, (float[]) actual, 0f);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package area_selector_ciliaQ;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.RoiEncoder;
+import ij.io.TiffEncoder;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Processes the same task with and without streaming output: the edited stacks
+ * have to be byte-identical, including the display range written to the tif
+ * description.
+ *
+ * @author Sebastian Rassmann
+ */
+public class StreamedOutputTest {
+
+	private static final String NAME = "img_C1.tif";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void stackWithoutDescription() throws Exception {
+		assertStreamedEqualsSaved(false, false);
+	}
+
+	@Test
+	public void stackWithoutDescriptionAndBlankFirstSlice() throws Exception {
+		assertStreamedEqualsSaved(false, true);
+	}
+
+	@Test
+	public void stackWrittenByImageJ() throws Exception {
+		assertStreamedEqualsSaved(true, true);
+	}
+
+	private void assertStreamedEqualsSaved(boolean description, boolean blankFirstSlice) throws Exception {
+		File input = folder.newFolder("in");
+		String path = input.getPath() + File.separator;
+		ImagePlus main = stack(blankFirstSlice);
+		if (description) {
+			IJ.saveAsTiff(main, path + NAME);
+		} else {
+			FileInfo fi = main.getFileInfo();
+			fi.description = null;
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path + NAME))) {
+				new TiffEncoder(fi).write(out);
+			}
+		}
+		IJ.saveAsTiff(stack(false), path + "img_C2.tif");
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(path + "img_Rois.zip"))) {
+			zip.putNextEntry(new ZipEntry("area.roi"));
+			new RoiEncoder(zip).write(new Roi(5, 4, 20, 15));
+			zip.closeEntry();
+		}
+
+		ProcessSettings pS = ProcessSettings.initWithoutTasks();
+		pS.mainPattern = "_C1.tif";
+		pS.helperPattern = "_C2.tif";
+		pS.importRois = true;
+		String saved = folder.newFolder("saved").getPath() + File.separator;
+		assertTrue(HeadlessProcessing.doProcessing(path, NAME, saved, pS, null, null));
+		pS.streamingOutput = true;
+		String streamed = folder.newFolder("streamed").getPath() + File.separator;
+		assertTrue(HeadlessProcessing.doProcessing(path, NAME, streamed, pS, null, null));
+
+		assertArrayEquals(Files.readAllBytes(new File(pS.editedPath(saved, NAME)).toPath()),
+				Files.readAllBytes(new File(pS.editedPath(streamed, NAME)).toPath()));
+	}
+
+	/**
+	 * 16-bit stack whose slices cover different ranges.
+	 */
+	private static ImagePlus stack(boolean blankFirstSlice) {
+		ImageStack stack = new ImageStack(40, 30);
+		for (int s = 0; s < 4; s++) {
+			ImageProcessor ip = new ShortProcessor(40, 30);
+			for (int i = 0; i < 40 * 30; i++) {
+				ip.set(i, s == 0 && blankFirstSlice ? 7 : 100 + 400 * s + i % 13);
+			}
+			stack.addSlice(null, ip);
+		}
+		return new ImagePlus("test", stack);
+	}
+}
@@ -0,0 +1,175 @@
+package area_selector_ciliaQ;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Claims tasks from several processes on one temp dir: every task has to be
+ * processed exactly once, stale leases are taken over by exactly one process
+ * - also by a batch that is already running - and a holder that lost its lease
+ * records nothing.
+ *
+ * @author Sebastian Rassmann
+ */
+public class TaskLeasesTest {
+
+	private static final int PROCESSES = 4, TASKS = 200;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Worker process: claims all tasks it can get and appends the claimed keys to
+	 * its log file.
+	 *
+	 * @param args output dir, log file, worker name
+	 */
+	public static void main(String[] args) throws IOException {
+		TaskLeases leases = new TaskLeases(new File(args[0]), args[2], 60000);
+		try (Writer log = new FileWriter(args[1])) {
+			for (int i = 0; i < TASKS; i++) {
+				String key = TaskLeases.key(args[0] + File.separator, "task" + i + ".tif");
+				TaskLeases.Lease lease = leases.tryClaim(key);
+				if (lease == null) {
+					continue;
+				}
+				log.write(key + "\n");
+				log.flush();
+				if (!lease.complete(true, null)) {
+					System.exit(3);
+				}
+			}
+		}
+		leases.shutdown();
+		System.exit(0);
+	}
+
+	@Test
+	public void concurrentProcessesClaimEveryTaskOnce() throws Exception {
+		File outputDir = folder.newFolder("out");
+		// every second task holds a stale lease of a crashed process, the workers race to take it over
+		File claimsDir = new File(outputDir, TaskLeases.DIR_NAME);
+		claimsDir.mkdirs();
+		for (int i = 0; i < TASKS; i += 2) {
+			File lock = new File(claimsDir,
+					TaskLeases.key(outputDir.getPath() + File.separator, "task" + i + ".tif") + TaskLeases.LOCK + 0);
+			Files.write(lock.toPath(), "crashed\ttoken\n".getBytes(StandardCharsets.UTF_8));
+			lock.setLastModified(System.currentTimeMillis() - 3600000);
+		}
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<Process>();
+		List<File> logs = new ArrayList<File>();
+		for (int p = 0; p < PROCESSES; p++) {
+			File log = new File(folder.getRoot(), "worker" + p + ".log");
+			logs.add(log);
+			processes.add(new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp",
+					System.getProperty("java.class.path"), TaskLeasesTest.class.getName(), outputDir.getPath(),
+					log.getPath(), "worker" + p).inheritIO().start());
+		}
+		for (Process process : processes) {
+			assertTrue("worker timed out", process.waitFor(2, TimeUnit.MINUTES));
+			assertEquals(0, process.exitValue());
+		}
+		Map<String, Integer> claims = new HashMap<String, Integer>();
+		for (File log : logs) {
+			for (String key : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+				claims.merge(key, 1, Integer::sum);
+			}
+		}
+		assertEquals(TASKS, claims.size());
+		for (Map.Entry<String, Integer> claim : claims.entrySet()) {
+			assertEquals(claim.getKey() + " claimed more than once", 1, (int) claim.getValue());
+		}
+	}
+
+	@Test
+	public void staleLeaseIsTakenOverOnce() throws Exception {
+		File outputDir = folder.newFolder("out");
+		TaskLeases crashed = new TaskLeases(outputDir, "crashed", 200);
+		TaskLeases a = new TaskLeases(outputDir, "a", 200), b = new TaskLeases(outputDir, "b", 200);
+		String key = TaskLeases.key(outputDir.getPath() + File.separator, "task.tif");
+		assertNotNull(crashed.tryClaim(key));
+		crashed.shutdown(); // no more renewals, like a killed process
+		assertNull("live lease must not be taken over", a.tryClaim(key));
+		Thread.sleep(400);
+
+		TaskLeases.Lease lease = a.tryClaim(key);
+		assertNotNull("stale lease must be taken over", lease);
+		assertNull("only one process takes over", b.tryClaim(key));
+		Thread.sleep(400); // renewed by the heartbeat meanwhile
+		assertNull("renewed lease must not be taken over", b.tryClaim(key));
+		assertTrue(lease.complete(true, null));
+		assertTrue(a.isDone(key));
+		assertNull("finished task must not be claimed", b.tryClaim(key));
+		a.shutdown();
+		b.shutdown();
+	}
+
+	@Test
+	public void runningBatchTakesOverLeaseOfDeadWorker() throws Exception {
+		File outputDir = folder.newFolder("out");
+		String dir = outputDir.getPath() + File.separator;
+		ProcessSettings pS = ProcessSettings.initWithoutTasks();
+		for (int i = 0; i < 10; i++) {
+			pS.addTask(dir, "task" + i + ".tif");
+		}
+		TaskLeases dying = new TaskLeases(outputDir, "dying", 200);
+		assertNotNull(dying.tryClaim(TaskLeases.key(dir, "task3.tif"))); // renewed until the worker dies
+
+		Map<String, String> processedBy = new ConcurrentHashMap<String, String>();
+		CompletableFuture<Integer> batch = CompletableFuture.supplyAsync(() -> BatchCommandLine.run(pS, "running",
+				2, 200, (task, path, name, out) -> processedBy.putIfAbsent(name, "running") == null
+						? null : "processed twice"));
+		Thread.sleep(600); // all other tasks are done, task3 is still held
+		assertFalse("task held by a live lease must not be processed", processedBy.containsKey("task3.tif"));
+		assertFalse("batch must wait for the held task", batch.isDone());
+		dying.shutdown(); // dies mid-run, its lease expires
+
+		assertEquals(0, (int) batch.get(1, TimeUnit.MINUTES));
+		assertEquals(10, processedBy.size());
+		assertEquals("running", processedBy.get("task3.tif"));
+		assertTrue(dying.isDone(TaskLeases.key(dir, "task3.tif")));
+	}
+
+	@Test
+	public void lostLeaseRecordsNothing() throws Exception {
+		File outputDir = folder.newFolder("out");
+		TaskLeases stalled = new TaskLeases(outputDir, "stalled", 200);
+		TaskLeases other = new TaskLeases(outputDir, "other", 200);
+		String key = TaskLeases.key(outputDir.getPath() + File.separator, "task.tif");
+		TaskLeases.Lease stalledLease = stalled.tryClaim(key);
+		assertNotNull(stalledLease);
+		stalled.shutdown(); // stalls longer than the lease
+		Thread.sleep(400);
+
+		TaskLeases.Lease lease = other.tryClaim(key);
+		assertNotNull(lease);
+		assertTrue(stalledLease.isLost());
+		assertFalse("lost lease must not record the task", stalledLease.complete(false, "stalled"));
+		assertFalse(other.isFinished(key));
+		assertTrue(lease.complete(true, null));
+		assertTrue(other.isDone(key));
+		other.shutdown();
+	}
+}